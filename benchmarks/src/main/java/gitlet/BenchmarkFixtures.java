@@ -0,0 +1,61 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/** Deterministic test data shared by the benchmarks.
+ *
+ *  @author x-yy-x
+ */
+class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    /** a file map of SIZE paths, each mapped to the id of some random content */
+    static TreeMap<String, String> manifest(int size, long seed) {
+        Random random = new Random(seed);
+        TreeMap<String, String> manifest = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            manifest.put(String.format("src/module%03d/File%06d.java", i % 100, i),
+                    Utils.sha1(Long.toString(random.nextLong())));
+        }
+        return manifest;
+    }
+
+    /** a commit tracking a manifest of SIZE files */
+    static Commit commit(int size, long seed) {
+        return new Commit("benchmark commit " + seed, new Date(seed), manifest(size, seed), null, null);
+    }
+
+    /** SIZE random bytes */
+    static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    static Path createTempDirectory() {
+        try {
+            return Files.createTempDirectory("gitlet-bench");
+        } catch (IOException excp) {
+            throw new IllegalStateException(excp);
+        }
+    }
+
+    /** delete DIR and everything below it */
+    static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException excp) {
+            throw new IllegalStateException(excp);
+        }
+    }
+}
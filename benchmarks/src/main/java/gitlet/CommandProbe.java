@@ -0,0 +1,28 @@
+package gitlet;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/** Runs one gitlet command and reports how long it took and how much heap it needed,
+ *  as a line "PROBE [nanoseconds] [peak heap bytes]" on stderr.
+ *  Used by ScaleBenchmark so that every measured command runs in a fresh JVM, like the real CLI.
+ *
+ *  @author x-yy-x
+ */
+public class CommandProbe {
+
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        Main.main(args);
+        long elapsed = System.nanoTime() - start;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.err.println("PROBE " + elapsed + " " + peakHeap);
+    }
+}
@@ -0,0 +1,83 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks serializing, deserializing, hashing and comparing commits
+ *  of growing manifest sizes.
+ *
+ *  @author x-yy-x
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommitBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int manifestSize;
+
+    private Commit commit;
+    /** equal to commit, but a different instance */
+    private Commit sameCommit;
+    private Commit otherCommit;
+    private Path dir;
+    private File commitFile;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        commit = BenchmarkFixtures.commit(manifestSize, 1);
+        otherCommit = BenchmarkFixtures.commit(manifestSize, 2);
+        dir = BenchmarkFixtures.createTempDirectory();
+        commitFile = dir.resolve("commit").toFile();
+        Utils.writeObject(commitFile, commit);
+        sameCommit = Utils.readObject(commitFile, Commit.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return Utils.serialize(commit);
+    }
+
+    @Benchmark
+    public Commit readObject() {
+        return Utils.readObject(commitFile, Commit.class);
+    }
+
+    @Benchmark
+    public int commitHashCode() {
+        return commit.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalCommits() {
+        return commit.equals(sameCommit);
+    }
+
+    @Benchmark
+    public boolean differentCommits() {
+        return commit.equals(otherCommit);
+    }
+}
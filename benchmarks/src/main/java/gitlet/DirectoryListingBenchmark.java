@@ -0,0 +1,56 @@
+package gitlet;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks Utils.plainFilenamesIn on large directories,
+ *  the way commits/ and blobs/ grow in a big repository.
+ *
+ *  @author x-yy-x
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryListingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int fileCount;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = BenchmarkFixtures.createTempDirectory();
+        for (int i = 0; i < fileCount; i++) {
+            Utils.writeContents(dir.resolve(Utils.sha1(Integer.toString(i))).toFile(), "");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public List<String> plainFilenamesIn() {
+        return Utils.plainFilenamesIn(dir.toFile());
+    }
+}
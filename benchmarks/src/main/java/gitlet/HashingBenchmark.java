@@ -0,0 +1,72 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks Utils.sha1 on in-memory content and Utils.sha1OfFile on files of the same size.
+ *
+ *  @author x-yy-x
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashingBenchmark {
+
+    @Param({"64", "4096", "1048576"})
+    public int size;
+
+    private byte[] content;
+    private Path dir;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        content = BenchmarkFixtures.randomBytes(size, size);
+        dir = BenchmarkFixtures.createTempDirectory();
+        file = dir.resolve("blob").toFile();
+        Utils.writeContents(file, (Object) content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String sha1() {
+        return Utils.sha1((Object) content);
+    }
+
+    @Benchmark
+    public ObjectId sha1Id() {
+        return Utils.sha1Id((Object) content);
+    }
+
+    @Benchmark
+    public String sha1OfFile() {
+        return Utils.sha1OfFile(file);
+    }
+
+    @Benchmark
+    public boolean compareIdWithHex() {
+        return Utils.sha1IdOfFile(file).equalsHex(Utils.sha1((Object) content));
+    }
+}
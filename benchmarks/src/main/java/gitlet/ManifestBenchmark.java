@@ -0,0 +1,93 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the compact Manifest of a commit against the TreeMap it replaces:
+ *  building it, looking up paths, and diffing two file maps of which 1% differs.
+ *
+ *  @author x-yy-x
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManifestBenchmark {
+
+    @Param({"1000", "100000"})
+    public int manifestSize;
+
+    private TreeMap<String, String> files;
+    private TreeMap<String, String> changedFiles;
+    private Manifest manifest;
+    private Manifest changedManifest;
+    private String[] paths;
+    private int nextPath;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        files = BenchmarkFixtures.manifest(manifestSize, 1);
+        changedFiles = new TreeMap<>(files);
+        int i = 0;
+        for (String path: files.keySet()) {
+            if (i++ % 100 == 0) {
+                changedFiles.put(path, Utils.sha1(path));
+            }
+        }
+        manifest = Manifest.of(files);
+        changedManifest = Manifest.of(changedFiles);
+        paths = files.keySet().toArray(new String[0]);
+    }
+
+    @Benchmark
+    public Manifest build() {
+        return Manifest.of(files);
+    }
+
+    @Benchmark
+    public String treeMapGet() {
+        nextPath = (nextPath + 7919) % paths.length;
+        return files.get(paths[nextPath]);
+    }
+
+    @Benchmark
+    public String manifestGet() {
+        nextPath = (nextPath + 7919) % paths.length;
+        return manifest.get(paths[nextPath]);
+    }
+
+    /** the diff as it was done on TreeMaps: a lookup in the other map per path */
+    @Benchmark
+    public List<String> treeMapDiff() {
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> entry: changedFiles.entrySet()) {
+            if (!entry.getValue().equals(files.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    @Benchmark
+    public List<String> manifestDiff() {
+        return Manifest.changedPaths(changedManifest, manifest);
+    }
+}
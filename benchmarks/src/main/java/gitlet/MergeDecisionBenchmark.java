@@ -0,0 +1,88 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the per-file merge decision (Repository.checkWhatToDoInMerge)
+ *  over every file of a split point and two heads which each changed a part of it.
+ *
+ *  @author x-yy-x
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeDecisionBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int manifestSize;
+
+    /** percentage of the files changed on each side */
+    @Param({"10"})
+    public int changedPercent;
+
+    private Commit split;
+    private Commit current;
+    private Commit branch;
+    private List<String> allFileNames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TreeMap<String, String> splitFiles = BenchmarkFixtures.manifest(manifestSize, 1);
+        split = new Commit("split", new java.util.Date(1), splitFiles, null, null);
+        current = new Commit("current", new java.util.Date(2), changeSome(splitFiles, 2), null, null);
+        branch = new Commit("branch", new java.util.Date(3), changeSome(splitFiles, 3), null, null);
+        TreeSet<String> names = new TreeSet<>(splitFiles.keySet());
+        names.addAll(current.getMapFromFilenameToId().keySet());
+        names.addAll(branch.getMapFromFilenameToId().keySet());
+        allFileNames = new ArrayList<>(names);
+    }
+
+    /// copy of files where changedPercent of the entries are modified, removed or added
+    private TreeMap<String, String> changeSome(TreeMap<String, String> files, long seed) {
+        Random random = new Random(seed);
+        TreeMap<String, String> changed = new TreeMap<>();
+        for (Map.Entry<String, String> entry: files.entrySet()) {
+            if (random.nextInt(100) >= changedPercent) {
+                changed.put(entry.getKey(), entry.getValue());
+            } else if (random.nextBoolean()) {
+                changed.put(entry.getKey(), Utils.sha1(entry.getValue(), Long.toString(seed)));
+            }
+        }
+        for (int i = 0; i < files.size() * changedPercent / 200; i++) {
+            changed.put("added/" + seed + "/" + i, Utils.sha1(Long.toString(random.nextLong())));
+        }
+        return changed;
+    }
+
+    @Benchmark
+    public int decideAllFiles() {
+        int conflicts = 0;
+        for (String fileName: allFileNames) {
+            if (Repository.checkWhatToDoInMerge(fileName, current, split, branch) == Repository.SIGN_OF_CONFLICT) {
+                conflicts++;
+            }
+        }
+        return conflicts;
+    }
+}
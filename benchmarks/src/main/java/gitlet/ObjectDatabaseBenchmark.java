@@ -0,0 +1,116 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks writing and reading blobs through each object database:
+ *  a batch of new objects made visible by one flush (as a commit does), and lookups of stored ones.
+ *
+ *  @author x-yy-x
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectDatabaseBenchmark {
+
+    /** objects already stored when the benchmark starts */
+    private static final int STORED = 1000;
+    /** objects written per flush */
+    private static final int BATCH = 100;
+
+    @Param({"loose", "log", "memory"})
+    public String store;
+
+    @Param({"100", "10000"})
+    public int objectSize;
+
+    private Path dir;
+    private ObjectDatabase objects;
+    private String[] storedIds;
+    private byte[] contents;
+    private long written;
+    private int nextRead;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = BenchmarkFixtures.createTempDirectory();
+        File objectsDir = dir.resolve("objects").toFile();
+        File tmpDir = dir.resolve("tmp").toFile();
+        objectsDir.mkdir();
+        tmpDir.mkdir();
+        switch (store) {
+            case "log":
+                LogObjectDatabase.create(objectsDir);
+                objects = ObjectDatabase.open(objectsDir, tmpDir);
+                break;
+            case "memory":
+                objects = new MemoryObjectDatabase();
+                break;
+            default:
+                for (ObjectDatabase.Kind kind: ObjectDatabase.Kind.values()) {
+                    new File(objectsDir, kind.dirName()).mkdir();
+                }
+                objects = ObjectDatabase.open(objectsDir, tmpDir);
+        }
+        contents = BenchmarkFixtures.randomBytes(objectSize, 1);
+        storedIds = new String[STORED];
+        for (int i = 0; i < STORED; i++) {
+            storedIds[i] = writeNew();
+        }
+        objects.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.deleteRecursively(dir);
+    }
+
+    /// write an object never written before, returning its id
+    private String writeNew() {
+        // the first bytes are a counter, so every object is a new one
+        ByteBuffer.wrap(contents).putLong(0, written++);
+        String id = Utils.sha1((Object) contents);
+        objects.write(ObjectDatabase.Kind.BLOB, id, contents);
+        return id;
+    }
+
+    @Benchmark
+    public void writeBatchAndFlush() {
+        for (int i = 0; i < BATCH; i++) {
+            writeNew();
+        }
+        objects.flush();
+        // then merges segments, as a command holding the exclusive lock does
+        objects.maintain();
+    }
+
+    @Benchmark
+    public byte[] read() {
+        nextRead = (nextRead + 1) % STORED;
+        return objects.read(ObjectDatabase.Kind.BLOB, storedIds[nextRead]);
+    }
+
+    @Benchmark
+    public boolean hasMissing() {
+        return objects.has(ObjectDatabase.Kind.BLOB, "0000000000000000000000000000000000000000");
+    }
+}
@@ -0,0 +1,182 @@
+package gitlet;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks history walks with and without ReadAhead, through a fresh repository handle (a cold commit cache)
+ *  over an object database whose every read takes latencyMicros more (as a cold disk or a network file system would):
+ *  a first-parent walk formatting every commit (log), and a breadth-first walk of two lines of history
+ *  merged at every commit (the split point search), which can read both lines at once.
+ *
+ *  @author x-yy-x
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadAheadBenchmark {
+
+    /** commits on each line of history */
+    private static final int COMMITS = 200;
+
+    @Param({"0", "100", "1000"})
+    public int latencyMicros;
+
+    @Param({"false", "true"})
+    public boolean readAhead;
+
+    private Path dir;
+    private SlowObjectDatabase objects;
+    private String tip;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = BenchmarkFixtures.createTempDirectory();
+        objects = new SlowObjectDatabase(new MemoryObjectDatabase());
+        TreeMap<String, String> files = BenchmarkFixtures.manifest(50, 0);
+        Commit main = new Commit("initial commit", new Date(0), files, null, null);
+        Commit side = main;
+        write(main);
+        for (int i = 1; i < COMMITS; i++) {
+            side = new Commit("side " + i, new Date(2L * i), files, side, null);
+            write(side);
+            main = new Commit("main " + i, new Date(2L * i + 1), files, main, side);
+            write(main);
+        }
+        tip = main.getId();
+        objects.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.deleteRecursively(dir);
+    }
+
+    private void write(Commit commit) {
+        objects.write(ObjectDatabase.Kind.COMMIT, commit.getId(), Utils.serialize(commit));
+    }
+
+    @Benchmark
+    public int firstParentLog() {
+        Repository repo = new Repository(dir.toFile(), System.out, objects);
+        int printed = 0;
+        try (ReadAhead ahead = repo.readAhead(Set.of())) {
+            Commit current = repo.readCommit(tip);
+            while (current != null) {
+                if (readAhead) {
+                    ahead.visit(current);
+                }
+                printed += current.toString().length();
+                String parentId = current.getParent1ID();
+                current = parentId.isEmpty() ? null : repo.readCommit(parentId);
+            }
+        }
+        return printed;
+    }
+
+    @Benchmark
+    public int breadthFirstWalk() {
+        Repository repo = new Repository(dir.toFile(), System.out, objects);
+        Set<String> visited = new HashSet<>();
+        Queue<Commit> queue = new ArrayDeque<>();
+        try (ReadAhead ahead = repo.readAhead(Set.of())) {
+            queue.add(repo.readCommit(tip));
+            visited.add(tip);
+            while (!queue.isEmpty()) {
+                Commit current = queue.poll();
+                if (readAhead) {
+                    ahead.visit(current);
+                }
+                for (String parentId: new String[] {current.getParent1ID(), current.getParent2ID()}) {
+                    if (!parentId.isEmpty() && visited.add(parentId)) {
+                        queue.add(repo.readCommit(parentId));
+                    }
+                }
+            }
+        }
+        return visited.size();
+    }
+
+    /** an object database whose reads take latencyNanos longer */
+    static final class SlowObjectDatabase implements ObjectDatabase {
+        private final ObjectDatabase objects;
+        volatile long latencyNanos;
+
+        SlowObjectDatabase(ObjectDatabase objects) {
+            this.objects = objects;
+        }
+
+        private void waitLatency() {
+            if (latencyNanos > 0) {
+                LockSupport.parkNanos(latencyNanos);
+            }
+        }
+
+        @Override
+        public boolean has(Kind kind, String id) {
+            return objects.has(kind, id);
+        }
+
+        @Override
+        public byte[] read(Kind kind, String id) {
+            waitLatency();
+            return objects.read(kind, id);
+        }
+
+        @Override
+        public InputStream stream(Kind kind, String id) {
+            waitLatency();
+            return objects.stream(kind, id);
+        }
+
+        @Override
+        public void write(Kind kind, String id, byte[] contents) {
+            objects.write(kind, id, contents);
+        }
+
+        @Override
+        public long size(Kind kind, String id) {
+            return objects.size(kind, id);
+        }
+
+        @Override
+        public long lastModified(Kind kind, String id) {
+            return objects.lastModified(kind, id);
+        }
+
+        @Override
+        public List<String> ids(Kind kind) {
+            return objects.ids(kind);
+        }
+
+        @Override
+        public void delete(Kind kind, String id) {
+            objects.delete(kind, id);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Builds a synthetic gitlet repository of a configurable size in the current directory,
+ *  by driving the real commands in-process (Repository resolves its directories from user.dir,
+ *  so run it with the target directory as working directory, as ScaleBenchmark does).
+ *
+ *  Options (all optional):
+ *      --commits N            number of commits to make (200)
+ *      --files-per-commit N   files written by each commit (10)
+ *      --file-size N          mean file size in bytes (4096)
+ *      --size-dist D          fixed, uniform or lognormal (lognormal)
+ *      --branch-factor P      probability that a commit starts a new branch (0.05)
+ *      --merge-factor P       probability that a commit is a merge of another branch (0.05)
+ *      --remotes N            copies of the result created next to it as remote1, remote2... (1)
+ *      --seed N               random seed (1)
+ *  Remotes are registered with relative paths, so the directory holding the repository
+ *  and its remotes can be copied around as a whole.
+ *
+ *  @author x-yy-x
+ */
+public class RepoGenerator {
+
+    private final GeneratorOptions options;
+    private final Random random;
+    private final List<String> branches = new ArrayList<>();
+    private final List<String> fileNames = new ArrayList<>();
+    private int mergesMade;
+
+    RepoGenerator(GeneratorOptions options) {
+        this.options = options;
+        this.random = new Random(options.seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        GeneratorOptions options = GeneratorOptions.parse(args);
+        long start = System.nanoTime();
+        PrintStream originalOut = System.out;
+        // the commands print a lot, none of it is interesting here
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        RepoGenerator generator = new RepoGenerator(options);
+        try {
+            generator.generate();
+        } finally {
+            System.setOut(originalOut);
+        }
+        System.out.printf("Generated %d commits (%d merges), %d files, %d branches, %d remotes in %.1f s.%n",
+                options.commits, generator.mergesMade, generator.fileNames.size(), generator.branches.size(),
+                options.remotes, (System.nanoTime() - start) / 1e9);
+    }
+
+    private static void gitlet(String... args) {
+        Main.main(args);
+    }
+
+    private void generate() throws IOException {
+        gitlet("init");
+        branches.add("master");
+        String currentBranch = "master";
+        for (int i = 0; i < options.commits; i++) {
+            double dice = random.nextDouble();
+            if (dice < options.branchFactor) {
+                String newBranch = "branch" + i;
+                gitlet("branch", newBranch);
+                gitlet("checkout", newBranch);
+                branches.add(newBranch);
+                currentBranch = newBranch;
+            } else if (dice < options.branchFactor + options.mergeFactor && branches.size() > 1) {
+                String other = branches.get(random.nextInt(branches.size()));
+                if (!other.equals(currentBranch)) {
+                    gitlet("merge", other);
+                    mergesMade++;
+                    continue;
+                }
+            }
+            writeFiles();
+            gitlet("commit", "commit " + i);
+        }
+        // push in the benchmarks works on master
+        gitlet("checkout", "master");
+        createRemotes();
+    }
+
+    /// write files-per-commit files, half of them new (while possible), and stage them
+    private void writeFiles() throws IOException {
+        for (int i = 0; i < options.filesPerCommit; i++) {
+            String fileName;
+            if (fileNames.isEmpty() || random.nextBoolean()) {
+                fileName = String.format("file%07d.txt", fileNames.size());
+                fileNames.add(fileName);
+            } else {
+                fileName = fileNames.get(random.nextInt(fileNames.size()));
+            }
+            Files.write(Path.of(fileName), content(nextFileSize()));
+            gitlet("add", fileName);
+        }
+    }
+
+    private int nextFileSize() {
+        switch (options.sizeDistribution) {
+            case "fixed":
+                return options.fileSize;
+            case "uniform":
+                return random.nextInt(2 * options.fileSize + 1);
+            default:
+                // lognormal with the requested mean: exp(mu + sigma^2 / 2) = mean
+                double sigma = 1.0;
+                double mu = Math.log(options.fileSize) - sigma * sigma / 2;
+                return (int) Math.min(Integer.MAX_VALUE - 8, Math.exp(mu + sigma * random.nextGaussian()));
+        }
+    }
+
+    /// printable lines, so merges and conflicts behave as with source files
+    private byte[] content(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = i % 64 == 63 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        return bytes;
+    }
+
+    /// copy the finished repository next to itself as remote1, remote2..., and register them
+    private void createRemotes() throws IOException {
+        Path repoDir = Path.of(System.getProperty("user.dir")).toAbsolutePath();
+        for (int i = 1; i <= options.remotes; i++) {
+            Path remoteDir = repoDir.resolveSibling("remote" + i);
+            copyTree(repoDir.resolve(".gitlet"), remoteDir.resolve(".gitlet"));
+            gitlet("add-remote", "remote" + i, "../remote" + i + "/.gitlet");
+        }
+    }
+
+    /** copy the directory tree SOURCE to TARGET */
+    static void copyTree(Path source, Path target) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path: (Iterable<Path>) paths::iterator) {
+                Path destination = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(destination);
+                } else {
+                    Files.copy(path, destination, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    /** the options of the generator, also accepted (and passed on) by ScaleBenchmark */
+    static class GeneratorOptions {
+        int commits = 200;
+        int filesPerCommit = 10;
+        int fileSize = 4096;
+        String sizeDistribution = "lognormal";
+        double branchFactor = 0.05;
+        double mergeFactor = 0.05;
+        int remotes = 1;
+        long seed = 1;
+
+        /** parse ARGS, ignoring options that aren't generator options */
+        static GeneratorOptions parse(String[] args) {
+            GeneratorOptions options = new GeneratorOptions();
+            for (int i = 0; i + 1 < args.length; i++) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--commits":
+                        options.commits = Integer.parseInt(value);
+                        break;
+                    case "--files-per-commit":
+                        options.filesPerCommit = Integer.parseInt(value);
+                        break;
+                    case "--file-size":
+                        options.fileSize = Integer.parseInt(value);
+                        break;
+                    case "--size-dist":
+                        options.sizeDistribution = value;
+                        break;
+                    case "--branch-factor":
+                        options.branchFactor = Double.parseDouble(value);
+                        break;
+                    case "--merge-factor":
+                        options.mergeFactor = Double.parseDouble(value);
+                        break;
+                    case "--remotes":
+                        options.remotes = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        continue;
+                }
+                i++;
+            }
+            return options;
+        }
+
+        /** the same options, as command line arguments */
+        List<String> toArgs() {
+            return List.of("--commits", Integer.toString(commits),
+                    "--files-per-commit", Integer.toString(filesPerCommit),
+                    "--file-size", Integer.toString(fileSize),
+                    "--size-dist", sizeDistribution,
+                    "--branch-factor", Double.toString(branchFactor),
+                    "--merge-factor", Double.toString(mergeFactor),
+                    "--remotes", Integer.toString(remotes),
+                    "--seed", Long.toString(seed));
+        }
+
+        String toJson() {
+            return String.format("{\"commits\": %d, \"filesPerCommit\": %d, \"fileSize\": %d, \"sizeDist\": \"%s\", "
+                            + "\"branchFactor\": %s, \"mergeFactor\": %s, \"remotes\": %d, \"seed\": %d}",
+                    commits, filesPerCommit, fileSize, sizeDistribution, branchFactor, mergeFactor, remotes, seed);
+        }
+    }
+
+    /** write a small modified version of an existing text file, used by the benchmark setups */
+    static void touch(File file, String marker) throws IOException {
+        byte[] old = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+        byte[] line = (marker + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] updated = new byte[old.length + line.length];
+        System.arraycopy(old, 0, updated, 0, old.length);
+        System.arraycopy(line, 0, updated, old.length, line.length);
+        Files.write(file.toPath(), updated);
+    }
+}
@@ -0,0 +1,238 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** End-to-end scale benchmark.
+ *  Generates a repository with RepoGenerator (same options), then measures the commands
+ *  add, commit, status, log, checkout, merge, fetch and push against it.
+ *  Every iteration works on a fresh copy of the generated repository and its remotes,
+ *  prepares the state the command needs, then runs the command alone in a new JVM through CommandProbe.
+ *  Copying and preparing are not measured.
+ *
+ *  Extra options:
+ *      --work DIR          where the repositories are created (a new temporary directory)
+ *      --iterations N      measured runs per command (10)
+ *      --only a,b,...      measure only these commands
+ *      --out FILE          JSON report (scale-result.json)
+ *  Latency percentiles (in-process command time and whole process time) and the peak heap
+ *  are printed, and written to the JSON report so releases can be compared.
+ *
+ *  @author x-yy-x
+ */
+public class ScaleBenchmark {
+
+    private static final List<String> COMMANDS =
+            Arrays.asList("add", "commit", "status", "log", "checkout", "merge", "fetch", "push");
+
+    private final Path work;
+    private final Path template;
+    private final int iterations;
+
+    ScaleBenchmark(Path work, int iterations) {
+        this.work = work;
+        this.template = work.resolve("template");
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        RepoGenerator.GeneratorOptions options = RepoGenerator.GeneratorOptions.parse(args);
+        Path work = null;
+        int iterations = 10;
+        List<String> commands = COMMANDS;
+        String out = "scale-result.json";
+        for (int i = 0; i + 1 < args.length; i++) {
+            switch (args[i]) {
+                case "--work":
+                    work = Path.of(args[++i]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--only":
+                    commands = Arrays.asList(args[++i].split(","));
+                    break;
+                case "--out":
+                    out = args[++i];
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (work == null) {
+            work = Files.createTempDirectory("gitlet-scale");
+        }
+
+        ScaleBenchmark benchmark = new ScaleBenchmark(work, iterations);
+        benchmark.generate(options);
+        List<String> results = new ArrayList<>();
+        System.out.printf("%-9s %10s %10s %10s %10s %12s %12s%n",
+                "command", "p50 ms", "p90 ms", "p99 ms", "max ms", "process p50", "peak heap MB");
+        for (String command: commands) {
+            results.add(benchmark.measure(command));
+        }
+        String json = "{\"generator\": " + options.toJson() + ", \"iterations\": " + iterations
+                + ", \"results\": [" + String.join(", ", results) + "]}";
+        Files.writeString(Path.of(out), json + System.lineSeparator());
+        System.out.println("Report written to " + out);
+    }
+
+    /// generate the template repository (template/repo, template/remote1, ...)
+    private void generate(RepoGenerator.GeneratorOptions options) throws IOException, InterruptedException {
+        Path repo = template.resolve("repo");
+        Files.createDirectories(repo);
+        List<String> command = javaCommand(RepoGenerator.class);
+        command.addAll(options.toArgs());
+        Process process = new ProcessBuilder(command).directory(repo.toFile()).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("generating the repository failed");
+        }
+    }
+
+    /// measure one command, return its JSON result
+    private String measure(String command) throws IOException, InterruptedException {
+        List<Long> commandNanos = new ArrayList<>();
+        List<Long> processNanos = new ArrayList<>();
+        long peakHeap = 0;
+        for (int i = 0; i < iterations; i++) {
+            Path scratch = work.resolve("run-" + command + "-" + i);
+            RepoGenerator.copyTree(template, scratch);
+            Path repo = scratch.resolve("repo");
+            String[] measured = prepare(command, repo, i);
+
+            long start = System.nanoTime();
+            long[] probe = runProbe(repo, measured);
+            processNanos.add(System.nanoTime() - start);
+            commandNanos.add(probe[0]);
+            peakHeap = Math.max(peakHeap, probe[1]);
+            BenchmarkFixtures.deleteRecursively(scratch);
+        }
+        Collections.sort(commandNanos);
+        Collections.sort(processNanos);
+        System.out.printf("%-9s %10.1f %10.1f %10.1f %10.1f %12.1f %12.1f%n", command,
+                percentile(commandNanos, 50) / 1e6, percentile(commandNanos, 90) / 1e6,
+                percentile(commandNanos, 99) / 1e6, commandNanos.get(commandNanos.size() - 1) / 1e6,
+                percentile(processNanos, 50) / 1e6, peakHeap / (1024.0 * 1024.0));
+        return String.format("{\"command\": \"%s\", \"p50Nanos\": %d, \"p90Nanos\": %d, \"p99Nanos\": %d, "
+                        + "\"maxNanos\": %d, \"processP50Nanos\": %d, \"peakHeapBytes\": %d}",
+                command, percentile(commandNanos, 50), percentile(commandNanos, 90), percentile(commandNanos, 99),
+                commandNanos.get(commandNanos.size() - 1), percentile(processNanos, 50), peakHeap);
+    }
+
+    /** bring the copy in REPO into the state COMMAND needs, return the arguments of the measured command */
+    private String[] prepare(String command, Path repo, int iteration) throws IOException, InterruptedException {
+        File someFile = trackedFile(repo);
+        String marker = "benchmark change " + iteration;
+        switch (command) {
+            case "add":
+                RepoGenerator.touch(someFile, marker);
+                return new String[] {"add", someFile.getName()};
+            case "commit":
+                RepoGenerator.touch(someFile, marker);
+                run(repo, "add", someFile.getName());
+                return new String[] {"commit", marker};
+            case "status":
+                RepoGenerator.touch(someFile, marker);
+                return new String[] {"status"};
+            case "log":
+                return new String[] {"log"};
+            case "checkout":
+                run(repo, "branch", "benchmark-target");
+                commitChange(repo, someFile, marker);
+                return new String[] {"checkout", "benchmark-target"};
+            case "merge":
+                // two diverged branches changing different files, so the merge has real work to do
+                run(repo, "branch", "benchmark-merge");
+                run(repo, "checkout", "benchmark-merge");
+                commitChange(repo, someFile, marker);
+                run(repo, "checkout", "master");
+                commitChange(repo, repo.resolve("benchmark-merge.txt").toFile(), marker);
+                return new String[] {"merge", "benchmark-merge"};
+            case "fetch":
+                Path remote = repo.resolveSibling("remote1");
+                commitChange(remote, remote.resolve("benchmark-fetch.txt").toFile(), marker);
+                return new String[] {"fetch", "remote1", "master"};
+            case "push":
+                commitChange(repo, someFile, marker);
+                return new String[] {"push", "remote1", "master"};
+            default:
+                throw new IllegalArgumentException("no benchmark for " + command);
+        }
+    }
+
+    /// some tracked file of the repository (the generator only leaves tracked files in the working directory)
+    private static File trackedFile(Path repo) {
+        File[] files = repo.toFile().listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            return repo.resolve("benchmark.txt").toFile();
+        }
+        Arrays.sort(files);
+        return files[files.length / 2];
+    }
+
+    private void commitChange(Path repo, File file, String marker) throws IOException, InterruptedException {
+        RepoGenerator.touch(file, marker);
+        run(repo, "add", file.getName());
+        run(repo, "commit", marker);
+    }
+
+    /// run an unmeasured gitlet command in REPO
+    private void run(Path repo, String... args) throws IOException, InterruptedException {
+        List<String> command = javaCommand(Main.class);
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).directory(repo.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        process.waitFor();
+    }
+
+    /// run the measured command, return {command nanoseconds, peak heap bytes}
+    private long[] runProbe(Path repo, String[] args) throws IOException, InterruptedException {
+        List<String> command = javaCommand(CommandProbe.class);
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).directory(repo.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        long[] result = null;
+        try (BufferedReader err = new BufferedReader(
+                new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = err.readLine()) != null) {
+                if (line.startsWith("PROBE ")) {
+                    String[] parts = line.split(" ");
+                    result = new long[] {Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+                } else {
+                    System.err.println(line);
+                }
+            }
+        }
+        process.waitFor();
+        if (result == null) {
+            throw new IllegalStateException("gitlet " + String.join(" ", args) + " did not finish");
+        }
+        return result;
+    }
+
+    private static List<String> javaCommand(Class<?> mainClass) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        return command;
+    }
+
+    /// nearest-rank percentile of sorted values
+    private static long percentile(List<Long> sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+}
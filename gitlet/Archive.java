@@ -0,0 +1,201 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/** The files of a commit as a tar or zip archive, streamed blob by blob from the object store:
+ *  no working tree is written and no file is ever whole in memory.
+ *
+ *  The same commit always gives the same archive, byte for byte: the files come in the order of the commit's
+ *  Manifest (sorted paths), every one with the commit's timestamp, and nothing else that could differ
+ *  (owner, permissions, the time of the export) goes in. Tar entries are ustar, with a pax header
+ *  for a path that doesn't fit in one or a file of 8 GiB or more; zip entries are deflated, with their time in UTC.
+ *
+ *  @author x-yy-x
+ */
+class Archive {
+    enum Format {
+        TAR, ZIP;
+
+        /// the format named NAME (tar or zip), or null
+        static Format of(String name) {
+            for (Format format: values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final int BLOCK = 512;
+    /** tar archives are padded to a multiple of 20 blocks, as tar itself writes them */
+    private static final int RECORD = 20 * BLOCK;
+    /** the largest size in the 11 octal digits of a ustar header */
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private final ObjectDatabase objects;
+
+    private int files;
+
+    Archive(ObjectDatabase objects) {
+        this.objects = objects;
+    }
+
+    int getFiles() {
+        return files;
+    }
+
+    /** write into FILE the files of COMMIT as an archive in FORMAT, the file replaced only once it is whole */
+    void write(File file, Commit commit, Format format) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+                if (format == Format.TAR) {
+                    writeTar(out, commit);
+                } else {
+                    writeZip(out, commit);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new GitletException("Cannot write the archive: " + excp.getMessage());
+        }
+    }
+
+    /* TAR */
+
+    private void writeTar(OutputStream out, Commit commit) throws IOException {
+        long mtime = Math.max(0, commit.getTimestamp().getTime() / 1000);
+        long written = 0;
+        for (Map.Entry<String, String> file: commit.getMapFromFilenameToId().entrySet()) {
+            String blobId = file.getValue();
+            long size = objects.size(ObjectDatabase.Kind.BLOB, blobId);
+            byte[] path = file.getKey().getBytes(StandardCharsets.UTF_8);
+
+            StringBuilder pax = new StringBuilder();
+            boolean ascii = file.getKey().chars().allMatch(c -> c < 0x80);
+            if (path.length > 100 || !ascii) {
+                pax.append(paxRecord("path", file.getKey()));
+            }
+            if (size > MAX_USTAR_SIZE) {
+                pax.append(paxRecord("size", Long.toString(size)));
+            }
+            if (pax.length() > 0) {
+                byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(tarHeader(asciiName(path), records.length, mtime, 'x'));
+                out.write(records);
+                written += BLOCK + pad(out, records.length);
+            }
+
+            out.write(tarHeader(asciiName(path), Math.min(size, MAX_USTAR_SIZE), mtime, '0'));
+            streamBlob(out, blobId, size);
+            written += BLOCK + pad(out, size);
+            files++;
+        }
+        // the end: two empty blocks, then up to a whole record
+        out.write(new byte[2 * BLOCK]);
+        written += 2 * BLOCK;
+        out.write(new byte[(int) ((RECORD - written % RECORD) % RECORD)]);
+    }
+
+    /// the path as it can go in the name field (the whole of it is in the pax header if it can't)
+    private static byte[] asciiName(byte[] path) {
+        byte[] name = Arrays.copyOf(path, Math.min(path.length, 100));
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] < 0) {
+                name[i] = '_';
+            }
+        }
+        return name;
+    }
+
+    /// a pax record: its length in decimal (the length included), the key, the value
+    private static String paxRecord(String key, String value) {
+        int rest = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = rest + Integer.toString(rest).length();
+        if (Integer.toString(length).length() > Integer.toString(rest).length()) {
+            length++;
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    private static byte[] tarHeader(byte[] name, long size, long mtime, char type) {
+        byte[] header = new byte[BLOCK];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, mtime);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        // the checksum is over the header with its own field as spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b: header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /// VALUE in octal, zero-padded to fill the field but its last byte, a NUL
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int start = offset + length - 1 - digits.length();
+        Arrays.fill(header, offset, start, (byte) '0');
+        System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, start, digits.length());
+        header[offset + length - 1] = 0;
+    }
+
+    /// pad the SIZE bytes just written to a whole number of blocks, and return that number of bytes
+    private static long pad(OutputStream out, long size) throws IOException {
+        int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+        out.write(new byte[padding]);
+        return size + padding;
+    }
+
+    /* ZIP */
+
+    private void writeZip(OutputStream out, Commit commit) throws IOException {
+        LocalDateTime time = LocalDateTime.ofInstant(commit.getTimestamp().toInstant(), ZoneOffset.UTC);
+        ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+        zip.setMethod(ZipOutputStream.DEFLATED);
+        for (Map.Entry<String, String> file: commit.getMapFromFilenameToId().entrySet()) {
+            String blobId = file.getValue();
+            ZipEntry entry = new ZipEntry(file.getKey());
+            // local time fields, read as UTC: no time zone of the machine exporting goes in
+            entry.setTimeLocal(time);
+            zip.putNextEntry(entry);
+            streamBlob(zip, blobId, objects.size(ObjectDatabase.Kind.BLOB, blobId));
+            zip.closeEntry();
+            files++;
+        }
+        zip.finish();
+    }
+
+    /// copy the blob, of SIZE bytes, from the object store into OUT
+    private void streamBlob(OutputStream out, String blobId, long size) throws IOException {
+        try (InputStream in = objects.stream(ObjectDatabase.Kind.BLOB, blobId)) {
+            if (in.transferTo(out) != size) {
+                throw new IOException("blob " + blobId + " changed while it was read");
+            }
+        }
+    }
+}
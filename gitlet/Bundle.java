@@ -0,0 +1,333 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static gitlet.Utils.*;
+
+/** A bundle: branches with their commits and blobs in one file, to move history where no remote can be reached.
+ *
+ *  The file starts with a plain text header:
+ *  `# gitlet bundle v1`, a line `<commit id> <branch>` per branch, a line `-<commit id>` per prerequisite
+ *  (a commit the history in the bundle builds on, that the receiving repository must have already) and an empty line.
+ *  Then comes a gzip stream of records, each a kind byte (B for a blob, C for a commit), the 20 raw bytes
+ *  of the id, the length as a long and the object. The blobs come first, then the commits, parents before
+ *  children, so that every object arrives after what it refers to; a 0 byte ends them.
+ *  Last, still compressed, is the SHA-1 of the header and the records.
+ *
+ *  Both ways the objects are streamed one at a time, never the whole bundle in memory. Every object received
+ *  is checked against its id before it is written, and the branches are only returned once the checksum
+ *  is checked too. The commit graph entries aren't sent, they are computed when the commits are received.
+ *
+ *  @author x-yy-x
+ */
+class Bundle {
+    private static final String SIGNATURE = "# gitlet bundle v1";
+    private static final byte END = 0;
+    private static final byte BLOB = 'B';
+    private static final byte COMMIT = 'C';
+
+    private final ObjectDatabase objects;
+    private final Function<String, Commit> readCommit;
+    /** makes sure blobs are there before they are read (see Repository.ensureBlobs) */
+    private final Consumer<Collection<String>> ensureBlobs;
+
+    private int commits;
+    private int blobs;
+
+    Bundle(ObjectDatabase objects, Function<String, Commit> readCommit, Consumer<Collection<String>> ensureBlobs) {
+        this.objects = objects;
+        this.readCommit = readCommit;
+        this.ensureBlobs = ensureBlobs;
+    }
+
+    int getCommits() {
+        return commits;
+    }
+
+    int getBlobs() {
+        return blobs;
+    }
+
+    /* CREATE */
+
+    /** write into FILE the branches BRANCHES (name -> commit id) with every commit they reach
+     *  but EXCLUDED and its ancestors don't, and the blobs of these commits but those of the prerequisites.
+     *  The history isn't walked beyond the commits SHALLOWCOMMITS, whose parents aren't there.
+     */
+    void create(File file, Map<String, String> branches, Collection<String> excluded, Set<String> shallowCommits) {
+        Set<String> excludedCommits = ancestors(excluded, shallowCommits);
+        List<String> included = new ArrayList<>();
+        Set<String> prerequisites = new LinkedHashSet<>();
+        collect(branches.values(), excludedCommits, shallowCommits, included, prerequisites);
+
+        // the receiver has the files of the prerequisites already, not the ones that changed since
+        Set<String> blobIds = new LinkedHashSet<>();
+        for (String commitId: included) {
+            blobIds.addAll(readCommit.apply(commitId).getMapFromFilenameToId().values());
+        }
+        for (String commitId: prerequisites) {
+            if (objects.has(ObjectDatabase.Kind.COMMIT, commitId)) {
+                blobIds.removeAll(readCommit.apply(commitId).getMapFromFilenameToId().values());
+            }
+        }
+        ensureBlobs.accept(blobIds);
+
+        File temp = new File(file.getPath() + ".tmp");
+        MessageDigest digest = newDigest();
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+                StringBuilder header = new StringBuilder(SIGNATURE).append('\n');
+                for (Map.Entry<String, String> branch: branches.entrySet()) {
+                    header.append(branch.getValue()).append(' ').append(branch.getKey()).append('\n');
+                }
+                for (String commitId: prerequisites) {
+                    header.append('-').append(commitId).append('\n');
+                }
+                header.append('\n');
+                byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(headerBytes);
+                digest.update(headerBytes);
+
+                GZIPOutputStream compressed = new GZIPOutputStream(out, 1 << 16);
+                DataOutputStream records = new DataOutputStream(new DigestOutputStream(compressed, digest));
+                for (String blobId: blobIds) {
+                    writeRecord(records, BLOB, ObjectDatabase.Kind.BLOB, blobId);
+                    blobs++;
+                }
+                for (String commitId: included) {
+                    writeRecord(records, COMMIT, ObjectDatabase.Kind.COMMIT, commitId);
+                    commits++;
+                }
+                records.writeByte(END);
+                records.flush();
+                compressed.write(digest.digest());
+                compressed.finish();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new GitletException("Cannot write the bundle: " + excp.getMessage());
+        }
+    }
+
+    /// the object streamed from the object store as a record
+    private void writeRecord(DataOutputStream records, byte type, ObjectDatabase.Kind kind, String id)
+            throws IOException {
+        long length = objects.size(kind, id);
+        records.writeByte(type);
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        ObjectId.fromHex(id).copyRawTo(raw, 0);
+        records.write(raw);
+        records.writeLong(length);
+        try (InputStream in = objects.stream(kind, id)) {
+            if (in.transferTo(records) != length) {
+                throw new IOException(kind.name().toLowerCase() + " " + id + " changed while it was read");
+            }
+        }
+    }
+
+    /// the commits STARTS and all their ancestors
+    private Set<String> ancestors(Collection<String> starts, Set<String> shallowCommits) {
+        Set<String> ancestors = new HashSet<>(starts);
+        Deque<String> toVisit = new ArrayDeque<>(starts);
+        while (!toVisit.isEmpty()) {
+            String commitId = toVisit.pop();
+            if (shallowCommits.contains(commitId)) {
+                continue;
+            }
+            Commit commit = readCommit.apply(commitId);
+            for (String parentId: new String[] {commit.getParent1ID(), commit.getParent2ID()}) {
+                if (!parentId.isEmpty() && ancestors.add(parentId)) {
+                    toVisit.push(parentId);
+                }
+            }
+        }
+        return ancestors;
+    }
+
+    /** put into INCLUDED the commits reachable from TIPS without going through EXCLUDED, parents first
+     *  (a depth first walk, every commit after its parents), and into PREREQUISITES the parents left out
+     */
+    private void collect(Collection<String> tips, Set<String> excluded, Set<String> shallowCommits,
+                         List<String> included, Set<String> prerequisites) {
+        Set<String> reached = new HashSet<>();
+        // a commit is on the stack twice: to expand it, then (marked with its parents done) to add it
+        Deque<String[]> stack = new ArrayDeque<>();
+        for (String tip: tips) {
+            if (excluded.contains(tip)) {
+                prerequisites.add(tip);
+            } else if (reached.add(tip)) {
+                stack.push(new String[] {tip, null});
+            }
+        }
+        while (!stack.isEmpty()) {
+            String[] top = stack.pop();
+            String commitId = top[0];
+            if (top[1] != null) {
+                included.add(commitId);
+                continue;
+            }
+            stack.push(new String[] {commitId, "parents done"});
+            Commit commit = readCommit.apply(commitId);
+            for (String parentId: new String[] {commit.getParent2ID(), commit.getParent1ID()}) {
+                if (parentId.isEmpty()) {
+                    continue;
+                }
+                if (excluded.contains(parentId) || shallowCommits.contains(commitId)) {
+                    prerequisites.add(parentId);
+                } else if (reached.add(parentId)) {
+                    stack.push(new String[] {parentId, null});
+                }
+            }
+        }
+    }
+
+    /* UNBUNDLE */
+
+    /** write the objects of the bundle FILE into the object store and return its branches (name -> commit id).
+     *  Throws GitletException if a prerequisite is missing or the bundle is corrupt: the objects received
+     *  until then were checked one by one, they stay (unreferenced, for gc to sweep).
+     */
+    Map<String, String> unbundle(File file) {
+        MessageDigest digest = newDigest();
+        Map<String, String> branches = new LinkedHashMap<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            if (!SIGNATURE.equals(readHeaderLine(in, digest))) {
+                throw new GitletException("Not a gitlet bundle: " + file.getPath());
+            }
+            for (String line = readHeaderLine(in, digest); !line.isEmpty(); line = readHeaderLine(in, digest)) {
+                if (line.startsWith("-")) {
+                    String commitId = line.substring(1);
+                    if (!objects.has(ObjectDatabase.Kind.COMMIT, commitId)) {
+                        throw new GitletException("The bundle needs commit " + commitId
+                                + ", which this repository doesn't have.");
+                    }
+                } else {
+                    int space = line.indexOf(' ');
+                    if (space < 0 || !ObjectId.isHex(line.substring(0, space))) {
+                        throw corrupt("invalid header line " + line);
+                    }
+                    branches.put(line.substring(space + 1), line.substring(0, space));
+                }
+            }
+
+            InputStream compressed = new GZIPInputStream(in, 1 << 16);
+            DataInputStream records = new DataInputStream(new DigestInputStream(compressed, digest));
+            for (byte type = records.readByte(); type != END; type = records.readByte()) {
+                readRecord(records, type);
+            }
+            byte[] expected = digest.digest();
+            byte[] checksum = compressed.readNBytes(expected.length);
+            if (!MessageDigest.isEqual(expected, checksum) || compressed.read() >= 0) {
+                throw corrupt("the checksum doesn't match");
+            }
+        } catch (EOFException excp) {
+            throw corrupt("it is truncated");
+        } catch (ZipException excp) {
+            throw corrupt(excp.getMessage());
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read the bundle: " + excp.getMessage());
+        }
+        for (String commitId: branches.values()) {
+            if (!objects.has(ObjectDatabase.Kind.COMMIT, commitId)) {
+                throw corrupt("it lacks commit " + commitId);
+            }
+        }
+        return branches;
+    }
+
+    /// check a record against its id and store it
+    private void readRecord(DataInputStream records, byte type) throws IOException {
+        if (type != BLOB && type != COMMIT) {
+            throw corrupt("unknown record type " + type);
+        }
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        records.readFully(raw);
+        String id = ObjectId.toHex(raw, 0);
+        long length = records.readLong();
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw corrupt("invalid length of " + id);
+        }
+        byte[] contents = new byte[(int) length];
+        records.readFully(contents);
+        if (!sha1((Object) contents).equals(id)) {
+            throw corrupt("the contents of " + id + " don't match it");
+        }
+        if (type == BLOB) {
+            if (!objects.has(ObjectDatabase.Kind.BLOB, id)) {
+                objects.write(ObjectDatabase.Kind.BLOB, id, contents);
+            }
+            blobs++;
+            return;
+        }
+        if (!objects.has(ObjectDatabase.Kind.COMMIT, id)) {
+            Commit commit = deserialize(contents, Commit.class);
+            // the parents came before, or are prerequisites
+            String parentId = commit.getParent1ID();
+            Commit parent1 = parentId.isEmpty() ? null : readCommit.apply(parentId);
+            objects.write(ObjectDatabase.Kind.COMMIT, id, contents);
+            objects.write(ObjectDatabase.Kind.GRAPH, id, serialize(CommitGraphEntry.of(commit, parent1)));
+        }
+        commits++;
+    }
+
+    /// a line of the header, through DIGEST
+    private static String readHeaderLine(InputStream in, MessageDigest digest) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            line.write(b);
+        }
+        digest.update(line.toByteArray());
+        digest.update((byte) '\n');
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static GitletException corrupt(String problem) {
+        return new GitletException("The bundle is corrupt: " + problem + ".");
+    }
+}
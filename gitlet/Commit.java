@@ -1,6 +1,7 @@
 package gitlet;
 
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.Date; // get current time
@@ -16,12 +17,22 @@ import static gitlet.Utils.*;
  *  @author x-yy-x
  */
 public class Commit implements Serializable {
+    /** pinned to the value the JVM computed for the first version of this class,
+     *  so that adding methods never makes old commits unreadable (or changes their ids) */
+    private static final long serialVersionUID = -7390390878727030641L;
+
     /** The message of this Commit. */
     private final String message;
     /** the time when constructing a commit */
     private final Date timestamp;
-    /** mapping a filename to a blob's SHA-1 */
+    /** mapping a filename to a blob's SHA-1
+     *  only set while the commit is serialized: that is the form commits have on disk, and their ids hash
+     */
     private TreeMap<String, String> findBlobId;
+    /** the files in memory, see Manifest */
+    private transient Manifest manifest;
+    /** sha1 of the serialized commit, computed once (a commit never changes) */
+    private transient String id;
     /** the sha1 value of its parents, using as pointer */
     private final String parent1ID;
     /* very important: can't be the Commit instance
@@ -34,9 +45,50 @@ public class Commit implements Serializable {
     Commit(String message, Date timestamp, TreeMap<String, String> findBlobId, Commit parent1, Commit parent2) {
         this.message = message;
         this.timestamp = timestamp;
-        this.findBlobId = findBlobId;
-        this.parent1ID = parent1 == null ? "" : sha1OfObject(parent1);
-        this.parent2ID = parent2 == null ? "" : sha1OfObject(parent2);
+        this.manifest = Manifest.of(findBlobId);
+        this.parent1ID = parent1 == null ? "" : parent1.getId();
+        this.parent2ID = parent2 == null ? "" : parent2.getId();
+    }
+
+    /// the copy actually serialized: the files as the TreeMap commits were always written with
+    private Object writeReplace() throws ObjectStreamException {
+        if (findBlobId != null) {
+            return this;
+        }
+        Commit written = new Commit(this);
+        written.findBlobId = new TreeMap<>(manifest);
+        return written;
+    }
+
+    /// a deserialized commit keeps its files as a Manifest, the TreeMap is dropped
+    private Object readResolve() throws ObjectStreamException {
+        manifest = findBlobId == null ? Manifest.EMPTY : Manifest.of(findBlobId);
+        findBlobId = null;
+        return this;
+    }
+
+    private Commit(Commit other) {
+        this.message = other.message;
+        this.timestamp = other.timestamp;
+        this.parent1ID = other.parent1ID;
+        this.parent2ID = other.parent2ID;
+    }
+
+    /** the id of this commit: the sha1 of its serialized form */
+    public String getId() {
+        if (id == null) {
+            id = sha1OfObject(this);
+        }
+        return id;
+    }
+
+    /** the serialized form of this commit, hashing it into the id if that wasn't done yet (serializing only once) */
+    byte[] serialized() {
+        byte[] bytes = serialize(this);
+        if (id == null) {
+            id = sha1((Object) bytes);
+        }
+        return bytes;
     }
 
 
@@ -44,7 +96,7 @@ public class Commit implements Serializable {
     @Override
     public String toString() {
         String ans = "===" + System.lineSeparator()
-                + "commit " + sha1OfObject(this) + System.lineSeparator();
+                + "commit " + getId() + System.lineSeparator();
         if (!this.parent2ID.isEmpty()) {
             ans += "Merge: " + parent1ID.substring(0, 7) + " " + parent2ID.substring(0, 7) + System.lineSeparator();
         }
@@ -60,24 +112,33 @@ public class Commit implements Serializable {
     }
 
 
-    /** dereference the sha1 pointer */
-    public Commit getParent1() {
-        if (parent1ID.isEmpty()) {
-            return null;
-        }
-        return readObject(join(Repository.COMMITS_DIR, parent1ID), Commit.class);
+    /** dereference the sha1 pointer, in the repository REPO the commit belongs to */
+    public Commit getParent1(Repository repo) {
+        return loadParent(repo, parent1ID, 1);
+    }
+
+    public Commit getParent2(Repository repo) {
+        return loadParent(repo, parent2ID, 2);
     }
 
-    public Commit getParent2() {
-        if (parent2ID.isEmpty()) {
+    private static Commit loadParent(Repository repo, String parentID, int parentNumber) {
+        if (parentID.isEmpty()) {
             return null;
         }
-        return readObject(join(Repository.COMMITS_DIR, parent2ID), Commit.class);
+        GitletEvents.ParentLoad event = GitletEvents.beginParentLoad();
+        Commit parent = repo.readCommit(parentID);
+        if (event != null && event.shouldCommit()) {
+            event.objectId = parentID;
+            event.parentNumber = parentNumber;
+            event.command = GitletEvents.getCommand();
+            event.commit();
+        }
+        return parent;
     }
 
     @Override
     public int hashCode() {
-        return sha1OfObject(this).hashCode();
+        return getId().hashCode();
     }
 
     /** very important
@@ -93,11 +154,16 @@ public class Commit implements Serializable {
         }
         Commit otherCommit = (Commit) other;
 
-        return this.hashCode() == other.hashCode();
+        return getId().equals(otherCommit.getId());
+    }
+
+    /** the files of this commit, read-only */
+    public Manifest getMapFromFilenameToId() {
+        return manifest;
     }
 
-    public TreeMap<String, String> getMapFromFilenameToId() {
-        return findBlobId;
+    public Date getTimestamp() {
+        return timestamp;
     }
 
     public String getMessage() {
@@ -107,4 +173,8 @@ public class Commit implements Serializable {
     public String getParent1ID() {
         return parent1ID;
     }
+
+    public String getParent2ID() {
+        return parent2ID;
+    }
 }
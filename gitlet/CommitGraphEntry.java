@@ -0,0 +1,88 @@
+package gitlet;
+
+import java.io.Serializable;
+import java.util.List;
+
+/** Represents one node of the commit graph.
+ *  stored under objects/graph/ with the same id as its commit,
+ *  it keeps the parents of the commit together with a Bloom filter of the paths
+ *  the commit changed relative to its first parent.
+ *  A path-limited history walk only needs these small entries,
+ *  the commit itself (and its file map) is loaded only when the filter says "maybe".
+ *
+ *  @author x-yy-x
+ */
+class CommitGraphEntry implements Serializable {
+    /** pinned to the value the JVM computed for the first version of this class,
+     *  so that changing its methods never makes the stored entries unreadable */
+    private static final long serialVersionUID = 2222861332060790213L;
+
+    /** bits reserved in the filter for every changed path (about 1% false positives) */
+    private static final int BITS_PER_PATH = 10;
+    /** number of bit positions set for every path */
+    private static final int NUM_HASHES = 7;
+
+    private final String parent1ID;
+    private final String parent2ID;
+    /** the Bloom filter itself */
+    private final long[] bits;
+
+    private CommitGraphEntry(String parent1ID, String parent2ID, List<String> changedPaths) {
+        this.parent1ID = parent1ID;
+        this.parent2ID = parent2ID;
+        int numBits = Math.max(64, changedPaths.size() * BITS_PER_PATH);
+        this.bits = new long[(numBits + 63) / 64];
+        for (String path: changedPaths) {
+            add(path);
+        }
+    }
+
+    /** build the entry of COMMIT, PARENT1 is its first parent (null for the initial commit) */
+    static CommitGraphEntry of(Commit commit, Commit parent1) {
+        Manifest previous = parent1 == null ? Manifest.EMPTY : parent1.getMapFromFilenameToId();
+        return new CommitGraphEntry(commit.getParent1ID(), commit.getParent2ID(),
+                Manifest.changedPaths(commit.getMapFromFilenameToId(), previous));
+    }
+
+    /** false means the commit definitely did not touch PATH */
+    boolean mightHaveChanged(String path) {
+        int h1 = path.hashCode();
+        int h2 = mix(h1);
+        long numBits = (long) bits.length * 64;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (int) Math.floorMod(h1 + (long) i * h2, numBits);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(String path) {
+        int h1 = path.hashCode();
+        int h2 = mix(h1);
+        long numBits = (long) bits.length * 64;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (int) Math.floorMod(h1 + (long) i * h2, numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /// second, independent hash for double hashing (murmur3 finalizer), forced odd
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+
+    String getParent1ID() {
+        return parent1ID;
+    }
+
+    String getParent2ID() {
+        return parent2ID;
+    }
+}
@@ -0,0 +1,116 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/** How hard gitlet tries to get what it writes onto the disk, chosen with the GITLET_DURABILITY variable.
+ *  Objects and refs are always written to a temporary file renamed into place (Utils.writeContentsAtomically),
+ *  so a crashed command never leaves a half written file under its final name. Then:
+ *  - none: nothing is synced, the operating system writes the files back when it wants.
+ *  - batch (the default): the renamed files and their directories are remembered, and synced together
+ *    at one point, by sync(), which RefStore calls before any ref is updated.
+ *    After a power failure, the refs only point to objects which reached the disk.
+ *  - strict: every file is synced before its rename, and its directory after it.
+ *
+ *  @author x-yy-x
+ */
+final class Durability {
+
+    enum Level {
+        NONE, BATCH, STRICT
+    }
+
+    private static final Level LEVEL = parse(System.getenv("GITLET_DURABILITY"));
+
+    /** files and directories renamed into place and not synced yet (batch only) */
+    private static final Set<Path> PENDING = new LinkedHashSet<>();
+
+    private Durability() {
+    }
+
+    static Level level() {
+        return LEVEL;
+    }
+
+    private static Level parse(String configured) {
+        if (configured == null) {
+            return Level.BATCH;
+        }
+        try {
+            return Level.valueOf(configured.trim().toUpperCase());
+        } catch (IllegalArgumentException excp) {
+            return Level.BATCH;
+        }
+    }
+
+    /** rename the fully written TEMP to TARGET, syncing them as the level says */
+    static void install(File temp, File target) throws IOException {
+        if (LEVEL == Level.STRICT) {
+            force(temp.toPath());
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        Path directory = target.getAbsoluteFile().getParentFile().toPath();
+        if (LEVEL == Level.STRICT) {
+            forceDirectory(directory);
+        } else if (LEVEL == Level.BATCH) {
+            synchronized (PENDING) {
+                PENDING.add(target.toPath());
+                PENDING.add(directory);
+            }
+        }
+    }
+
+    /** the batch sync point: sync every file renamed since the last one, then their directories.
+     *  The syncs are issued in parallel, so the disk can serve them together. */
+    static void sync() {
+        List<Path> pending;
+        synchronized (PENDING) {
+            if (PENDING.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(PENDING);
+            PENDING.clear();
+        }
+        try (Profiler.Phase phase = Profiler.phase("sync")) {
+            // the files first: a directory entry must not reach the disk pointing to missing data
+            pending.parallelStream().filter(Files::isRegularFile).forEach(Durability::forceUnchecked);
+            pending.parallelStream().filter(Files::isDirectory).forEach(Durability::forceDirectory);
+        } catch (UncheckedIOException excp) {
+            throw new GitletException("Cannot sync the repository to disk: " + excp.getCause().getMessage());
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static void forceUnchecked(Path file) {
+        try {
+            force(file);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(excp);
+        }
+    }
+
+    /// sync the entries of a directory. Not every platform can open a directory (Windows can't), that is ignored.
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            // nothing more can be done for the directory
+        }
+    }
+}
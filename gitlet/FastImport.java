@@ -0,0 +1,420 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/** Bulk import of history, for `fast-import`: reads a stream of blobs, commits and branch updates
+ *  in the format of `git fast-import` (the part of it gitlet can hold) and writes the objects directly,
+ *  without a working directory or a staging area. The branches are only returned, for the caller
+ *  to update them all at once when the whole stream is in.
+ *
+ *  Commands understood (see the documentation of git fast-import for the details):
+ *  - `blob`, `mark :N`, `data N` and N bytes;
+ *  - `commit refs/heads/BRANCH`, `mark :N`, `author ...` (ignored), `committer NAME <EMAIL> SECONDS TZ`,
+ *    `data N` and the message, `from REF`, `merge REF` (one at most), then `M MODE REF PATH`,
+ *    `M MODE inline PATH` followed by `data`, `D PATH` and `deleteall`;
+ *  - `reset refs/heads/BRANCH` with an optional `from REF`;
+ *  - `done`, and `progress`, `checkpoint`, `feature` and `option`, which are ignored.
+ *  A REF is a mark `:N`, a full commit id or a branch. A commit without `from` continues its branch,
+ *  and a new branch starts from the initial commit, which every gitlet history goes back to.
+ *  Paths are the plain file names gitlet tracks: a path with a directory in it is refused.
+ *
+ *  @author x-yy-x
+ */
+class FastImport {
+    /** how many of the commits written last are kept, as parents of the next ones */
+    private static final int RECENT_COMMITS = 1024;
+
+    private final ObjectDatabase objects;
+    private final Function<String, Commit> readCommit;
+    /** the commit id of an existing branch, null if there is no such branch */
+    private final Function<String, String> resolveBranch;
+    private final Commit initialCommit;
+
+    /** what the marks of the stream stand for: ":N" -> blob or commit id */
+    private final Map<String, String> marks = new HashMap<>();
+    /** the branches the stream updates, in order, name -> tip (null after a reset without from) */
+    private final Map<String, String> branches = new LinkedHashMap<>();
+    private final Map<String, Commit> recentCommits = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+            return size() > RECENT_COMMITS;
+        }
+    };
+
+    /** the files of the last commit imported, the next one usually starts from them */
+    private String lastCommitId;
+    private TreeMap<String, String> lastFiles;
+
+    private InputStream in;
+    /** the line being looked at, null at the end of the stream */
+    private String line;
+    private long lineNumber;
+    private int commitsImported;
+    private int blobsImported;
+
+    FastImport(ObjectDatabase objects, Function<String, Commit> readCommit,
+               Function<String, String> resolveBranch, Commit initialCommit) {
+        this.objects = objects;
+        this.readCommit = readCommit;
+        this.resolveBranch = resolveBranch;
+        this.initialCommit = initialCommit;
+    }
+
+    /** import the stream INPUT, returning the branches it updates: name -> new tip.
+     *  Throws GitletException if the stream is not valid; the objects imported until then stay
+     *  (unreferenced, for gc to sweep).
+     */
+    Map<String, String> run(InputStream input) {
+        in = new BufferedInputStream(input, 1 << 16);
+        readLine();
+        while (line != null) {
+            if (line.isEmpty()) {
+                readLine();
+            } else if (line.equals("blob")) {
+                blob();
+            } else if (line.startsWith("commit ")) {
+                commit(branchName(line.substring("commit ".length())));
+            } else if (line.startsWith("reset ")) {
+                reset(branchName(line.substring("reset ".length())));
+            } else if (line.equals("done")) {
+                break;
+            } else if (line.startsWith("progress ") || line.equals("checkpoint")
+                    || line.startsWith("feature ") || line.startsWith("option ")) {
+                readLine();
+            } else {
+                throw invalid("unsupported command " + line);
+            }
+        }
+        Map<String, String> updates = new LinkedHashMap<>();
+        for (Map.Entry<String, String> branch: branches.entrySet()) {
+            if (branch.getValue() != null) {
+                updates.put(branch.getKey(), branch.getValue());
+            }
+        }
+        return updates;
+    }
+
+    int getCommitsImported() {
+        return commitsImported;
+    }
+
+    int getBlobsImported() {
+        return blobsImported;
+    }
+
+    /* THE COMMANDS */
+
+    private void blob() {
+        readLine();
+        String mark = mark();
+        byte[] contents = data();
+        String blobId = sha1((Object) contents);
+        if (!objects.has(ObjectDatabase.Kind.BLOB, blobId)) {
+            objects.write(ObjectDatabase.Kind.BLOB, blobId, contents);
+        }
+        blobsImported++;
+        if (mark != null) {
+            marks.put(mark, blobId);
+        }
+    }
+
+    private void commit(String branch) {
+        readLine();
+        String mark = mark();
+        if (line != null && line.startsWith("author ")) {
+            readLine();
+        }
+        if (line == null || !line.startsWith("committer ")) {
+            throw invalid("expected committer");
+        }
+        Date timestamp = committerDate(line);
+        readLine();
+        String message = new String(data(), StandardCharsets.UTF_8);
+        // gitlet messages have no final newline
+        if (message.endsWith("\n")) {
+            message = message.substring(0, message.length() - 1);
+        }
+        skipEmptyLines();
+
+        Commit parent1;
+        if (line != null && line.startsWith("from ")) {
+            parent1 = commitOf(resolve(line.substring("from ".length())));
+            readLine();
+        } else {
+            String tip = branches.containsKey(branch) ? branches.get(branch) : resolveBranch.apply(branch);
+            parent1 = tip == null ? initialCommit : commitOf(tip);
+        }
+        Commit parent2 = null;
+        if (line != null && line.startsWith("merge ")) {
+            parent2 = commitOf(resolve(line.substring("merge ".length())));
+            readLine();
+            if (line != null && line.startsWith("merge ")) {
+                throw invalid("a gitlet commit has two parents at most");
+            }
+        }
+
+        // a commit keeps its files as a Manifest of its own, so the map can be changed into the next one's
+        TreeMap<String, String> files = parent1.getId().equals(lastCommitId)
+                ? lastFiles : new TreeMap<>(parent1.getMapFromFilenameToId());
+        while (line != null) {
+            if (line.isEmpty()) {
+                readLine();
+            } else if (line.startsWith("M ")) {
+                fileModify(files);
+            } else if (line.startsWith("D ")) {
+                files.remove(path(line.substring("D ".length())));
+                readLine();
+            } else if (line.equals("deleteall")) {
+                files.clear();
+                readLine();
+            } else {
+                break;
+            }
+        }
+
+        Commit commit = new Commit(message, timestamp, files, parent1, parent2);
+        byte[] serialized = commit.serialized();
+        String commitId = commit.getId();
+        objects.write(ObjectDatabase.Kind.COMMIT, commitId, serialized);
+        objects.write(ObjectDatabase.Kind.GRAPH, commitId, serialize(CommitGraphEntry.of(commit, parent1)));
+        recentCommits.put(commitId, commit);
+        lastCommitId = commitId;
+        lastFiles = files;
+        commitsImported++;
+        if (mark != null) {
+            marks.put(mark, commitId);
+        }
+        branches.put(branch, commitId);
+    }
+
+    /// M MODE REF PATH, or M MODE inline PATH and a data
+    private void fileModify(TreeMap<String, String> files) {
+        String[] fields = line.split(" ", 4);
+        if (fields.length < 4) {
+            throw invalid("expected M MODE REF PATH");
+        }
+        if (!Set.of("100644", "100755", "644", "755").contains(fields[1])) {
+            throw invalid("unsupported file mode " + fields[1]);
+        }
+        String path = path(fields[3]);
+        String blobId;
+        if (fields[2].equals("inline")) {
+            readLine();
+            byte[] contents = data();
+            blobId = sha1((Object) contents);
+            if (!objects.has(ObjectDatabase.Kind.BLOB, blobId)) {
+                objects.write(ObjectDatabase.Kind.BLOB, blobId, contents);
+            }
+            blobsImported++;
+        } else {
+            blobId = resolveMarkOrId(fields[2]);
+            if (!objects.has(ObjectDatabase.Kind.BLOB, blobId)) {
+                throw invalid("no blob " + fields[2]);
+            }
+            readLine();
+        }
+        files.put(path, blobId);
+    }
+
+    private void reset(String branch) {
+        readLine();
+        skipEmptyLines();
+        if (line != null && line.startsWith("from ")) {
+            String commitId = resolve(line.substring("from ".length()));
+            commitOf(commitId);
+            branches.put(branch, commitId);
+            readLine();
+        } else {
+            // the next commit on it starts over
+            branches.put(branch, null);
+        }
+    }
+
+    /* THE PARTS */
+
+    /// the branch of REF, which must be refs/heads/NAME
+    private String branchName(String ref) {
+        if (!ref.startsWith("refs/heads/")) {
+            throw invalid("unsupported ref " + ref + " (only branches, refs/heads/...)");
+        }
+        String name = ref.substring("refs/heads/".length());
+        if (name.isEmpty() || name.contains("/")) {
+            // names with a / are those of remote-tracking branches
+            throw invalid("unsupported branch name " + name);
+        }
+        return name;
+    }
+
+    /// the optional mark :N of the current line, null if there is none
+    private String mark() {
+        if (line == null || !line.startsWith("mark ")) {
+            return null;
+        }
+        String mark = line.substring("mark ".length());
+        if (!mark.startsWith(":")) {
+            throw invalid("invalid mark " + mark);
+        }
+        readLine();
+        return mark;
+    }
+
+    /// the commit id REF stands for
+    private String resolve(String ref) {
+        if (ref.startsWith(":") || ObjectId.isHex(ref)) {
+            return resolveMarkOrId(ref);
+        }
+        String name = ref.startsWith("refs/heads/") ? ref.substring("refs/heads/".length()) : ref;
+        String commitId = branches.containsKey(name) ? branches.get(name) : resolveBranch.apply(name);
+        if (commitId == null) {
+            throw invalid("no branch " + ref);
+        }
+        return commitId;
+    }
+
+    private String resolveMarkOrId(String ref) {
+        if (ref.startsWith(":")) {
+            String id = marks.get(ref);
+            if (id == null) {
+                throw invalid("unknown mark " + ref);
+            }
+            return id;
+        }
+        if (!ObjectId.isHex(ref)) {
+            throw invalid("invalid reference " + ref);
+        }
+        return ref.toLowerCase();
+    }
+
+    /// the commit COMMITID, one of the last imported or one of the repository
+    private Commit commitOf(String commitId) {
+        Commit commit = recentCommits.get(commitId);
+        if (commit != null) {
+            return commit;
+        }
+        if (!objects.has(ObjectDatabase.Kind.COMMIT, commitId)) {
+            throw invalid("no commit " + commitId);
+        }
+        return readCommit.apply(commitId);
+    }
+
+    /// the time of a committer line: NAME <EMAIL> SECONDS TZ
+    private Date committerDate(String committer) {
+        String[] fields = committer.substring(committer.lastIndexOf('>') + 1).trim().split(" ");
+        try {
+            return new Date(Long.parseLong(fields[0]) * 1000);
+        } catch (NumberFormatException excp) {
+            throw invalid("expected the time in seconds in " + committer);
+        }
+    }
+
+    /// a path of an M or D command, unquoted if git quoted it
+    private String path(String path) {
+        if (path.startsWith("\"")) {
+            path = unquote(path);
+        }
+        if (path.isEmpty() || path.contains("/") || path.equals(".gitlet")) {
+            throw invalid("unsupported path " + path + " (gitlet tracks the plain files of one directory)");
+        }
+        return path;
+    }
+
+    /// a C-style quoted string, as git writes the paths with unusual characters
+    private String unquote(String quoted) {
+        byte[] raw = quoted.getBytes(StandardCharsets.UTF_8);
+        if (raw.length < 2 || raw[raw.length - 1] != '"') {
+            throw invalid("invalid quoted path " + quoted);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 1; i < raw.length - 1; i++) {
+            if (raw[i] != '\\') {
+                bytes.write(raw[i]);
+                continue;
+            }
+            byte escaped = raw[++i];
+            if (escaped == 'n') {
+                bytes.write('\n');
+            } else if (escaped == 't') {
+                bytes.write('\t');
+            } else if (escaped == '"' || escaped == '\\') {
+                bytes.write(escaped);
+            } else if (escaped >= '0' && escaped <= '3' && i + 2 < raw.length - 1) {
+                // a byte as three octal digits
+                bytes.write(Integer.parseInt(new String(raw, i, 3, StandardCharsets.US_ASCII), 8));
+                i += 2;
+            } else {
+                throw invalid("invalid quoted path " + quoted);
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /// the bytes of a `data N` command (the current line), after which the next line is read
+    private byte[] data() {
+        if (line == null || !line.startsWith("data ")) {
+            throw invalid("expected data");
+        }
+        String count = line.substring("data ".length());
+        if (count.startsWith("<<")) {
+            throw invalid("delimited data is not supported, only data with a byte count");
+        }
+        int length;
+        try {
+            length = Integer.parseInt(count);
+        } catch (NumberFormatException excp) {
+            throw invalid("invalid byte count " + count);
+        }
+        try {
+            byte[] contents = in.readNBytes(length);
+            if (contents.length != length) {
+                throw invalid("the stream ends inside a data of " + length + " bytes");
+            }
+            readLine();
+            return contents;
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read the stream: " + excp.getMessage());
+        }
+    }
+
+    private void skipEmptyLines() {
+        while (line != null && line.isEmpty()) {
+            readLine();
+        }
+    }
+
+    /// move to the next line of the stream, null at its end
+    private void readLine() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            int b = in.read();
+            if (b < 0) {
+                line = null;
+                return;
+            }
+            while (b >= 0 && b != '\n') {
+                bytes.write(b);
+                b = in.read();
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read the stream: " + excp.getMessage());
+        }
+        lineNumber++;
+        line = bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private GitletException invalid(String problem) {
+        return new GitletException("Invalid fast-import stream at line " + lineNumber + ": " + problem + ".");
+    }
+}
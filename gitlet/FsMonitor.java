@@ -0,0 +1,344 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static gitlet.Utils.*;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/** A file system monitor of a working directory, so that status doesn't list and hash all of it every time.
+ *
+ *  `fsmonitor start` runs the monitor (run): it watches the working directory with a WatchService
+ *  and appends the name of every file created, modified or deleted to the journal in .gitlet/fsmonitor/,
+ *  holding .gitlet/fsmonitor/lock while it runs. Every start begins a new session: a new journal,
+ *  whose first line is the id of the session, replacing the old one at once.
+ *
+ *  A command asks for the working files (workingFiles): the last snapshot of them (name -> content id,
+ *  kept in .gitlet/fsmonitor/snapshot with the session and the journal offset it is up to date with),
+ *  with only the files journaled since then hashed again. To be sure every change made before the question
+ *  is in the journal, the command creates a cookie file in the watched cookies/ directory
+ *  and waits until the monitor has journaled what came before it and deleted it.
+ *  Without a running monitor, or if it doesn't answer in time, the command scans the directory itself.
+ *
+ *  @author x-yy-x
+ */
+class FsMonitor {
+    /** how long a command waits for the monitor to see its cookie */
+    private static final long COOKIE_TIMEOUT_MILLIS = 1000;
+    /** past this size the journal starts over (a new session), commands then scan once */
+    private static final long MAX_JOURNAL_BYTES = 1 << 20;
+    /** the journal line written when events were lost: everything may have changed */
+    private static final String EVERYTHING = "";
+    /** the cookie asking the monitor to stop */
+    private static final String STOP = "stop";
+
+    private final File cwd;
+    private final File dir;
+    private final File tmpDir;
+    private final File lockFile;
+    private final File journalFile;
+    private final File snapshotFile;
+    private final File cookiesDir;
+
+    /** the monitor of the working directory CWD, whose files are in DIR (TMPDIR being where files are written first) */
+    FsMonitor(File cwd, File dir, File tmpDir) {
+        this.cwd = cwd;
+        this.dir = dir;
+        this.tmpDir = tmpDir;
+        lockFile = join(dir, "lock");
+        journalFile = join(dir, "journal");
+        snapshotFile = join(dir, "snapshot");
+        cookiesDir = join(dir, "cookies");
+    }
+
+    /* THE MONITOR */
+
+    /** watch the working directory until stop is called, from this or another process.
+     *  Throws GitletException if a monitor is already running.
+     */
+    void run(PrintStream out) {
+        cookiesDir.mkdirs();
+        try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = tryLock(lockChannel);
+             WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            if (lock == null) {
+                throw new GitletException("An fsmonitor is already running.");
+            }
+            join(cookiesDir, STOP).delete();
+            WatchKey workingKey = cwd.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            cookiesDir.toPath().register(watcher, ENTRY_CREATE);
+            OutputStream journal = startSession(null);
+            out.println("Watching " + cwd + ".");
+            while (true) {
+                List<WatchKey> keys = new ArrayList<>();
+                keys.add(watcher.take());
+                for (WatchKey key = watcher.poll(); key != null; key = watcher.poll()) {
+                    keys.add(key);
+                }
+                // the working directory first: a cookie is only answered once what came before it is journaled
+                keys.sort((a, b) -> Boolean.compare(a != workingKey, b != workingKey));
+                List<String> cookies = new ArrayList<>();
+                for (WatchKey key: keys) {
+                    for (WatchEvent<?> event: key.pollEvents()) {
+                        String name = event.kind() == OVERFLOW ? EVERYTHING : event.context().toString();
+                        if (key != workingKey) {
+                            // a lost cookie isn't answered, its command times out and scans itself
+                            if (event.kind() != OVERFLOW) {
+                                cookies.add(name);
+                            }
+                        } else if (!name.equals(".gitlet")) {
+                            journal.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                    key.reset();
+                }
+                journal.flush();
+                if (cookies.contains(STOP)) {
+                    join(cookiesDir, STOP).delete();
+                    journal.close();
+                    return;
+                }
+                for (String cookie: cookies) {
+                    join(cookiesDir, cookie).delete();
+                }
+                if (journalFile.length() > MAX_JOURNAL_BYTES) {
+                    journal = startSession(journal);
+                }
+            }
+        } catch (IOException excp) {
+            throw new GitletException("The fsmonitor failed: " + excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /// a new session: a journal with a new id, the snapshots of the old one are no longer trusted.
+    /// A command reading the old journal keeps reading it whole, as it was.
+    private OutputStream startSession(OutputStream oldJournal) throws IOException {
+        if (oldJournal != null) {
+            oldJournal.close();
+        }
+        String session = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        writeContentsAtomically(journalFile, tmpDir, session + "\n");
+        return new BufferedOutputStream(new FileOutputStream(journalFile, true));
+    }
+
+    /** ask the running monitor to stop, returns false if there is none */
+    boolean stop() {
+        if (!isRunning()) {
+            return false;
+        }
+        writeContents(join(cookiesDir, STOP), "");
+        return true;
+    }
+
+    /** whether a monitor holds the lock of this working directory */
+    boolean isRunning() {
+        if (!lockFile.exists()) {
+            return false;
+        }
+        try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE);
+             FileLock lock = tryLock(lockChannel)) {
+            return lock == null;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /// the lock, null if someone else has it (another process, or this one)
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException excp) {
+            return null;
+        }
+    }
+
+    /* THE COMMANDS */
+
+    /** the plain files of the working directory, name -> sha1 of the content, as they are now;
+     *  null if there is no monitor to tell (the caller lists and hashes them itself)
+     */
+    TreeMap<String, String> workingFiles() {
+        if (!isRunning() || !waitForCookie()) {
+            return null;
+        }
+        try (Profiler.Phase phase = Profiler.phase("fsmonitor")) {
+            Snapshot snapshot = readSnapshot();
+            Set<String> changed = new HashSet<>();
+            String session;
+            long offset;
+            try (RandomAccessFile journal = new RandomAccessFile(journalFile, "r")) {
+                session = journal.readLine();
+                if (session == null) {
+                    return null;
+                }
+                if (snapshot != null && snapshot.session.equals(session)
+                        && snapshot.offset >= journal.getFilePointer() && snapshot.offset <= journal.length()) {
+                    offset = readJournal(journal, snapshot.offset, changed);
+                } else {
+                    // a new session: the old snapshot says nothing
+                    snapshot = null;
+                    offset = journal.length();
+                }
+            } catch (IOException excp) {
+                return null;
+            }
+            TreeMap<String, String> files;
+            if (snapshot == null || changed.contains(EVERYTHING)) {
+                files = scan();
+            } else {
+                files = snapshot.files;
+                for (String name: changed) {
+                    File file = join(cwd, name);
+                    if (file.isFile() && !name.equals(".gitlet")) {
+                        files.put(name, sha1OfFile(file));
+                    } else {
+                        files.remove(name);
+                    }
+                }
+            }
+            if (snapshot == null || !changed.isEmpty()) {
+                writeSnapshot(new Snapshot(session, offset, files));
+            }
+            return files;
+        } catch (IllegalArgumentException excp) {
+            // a file went away while it was read: no answer this time
+            return null;
+        }
+    }
+
+    /// create a cookie and wait until the monitor deletes it, false if it doesn't in time
+    private boolean waitForCookie() {
+        File cookie = join(cookiesDir, Long.toHexString(ThreadLocalRandom.current().nextLong()));
+        try {
+            writeContents(cookie, "");
+            long deadline = System.currentTimeMillis() + COOKIE_TIMEOUT_MILLIS;
+            while (cookie.exists()) {
+                if (System.currentTimeMillis() > deadline) {
+                    cookie.delete();
+                    return false;
+                }
+                Thread.sleep(1);
+            }
+            return true;
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            cookie.delete();
+            return false;
+        } catch (IllegalArgumentException excp) {
+            return false;
+        }
+    }
+
+    /// add the names JOURNAL has from OFFSET on to CHANGED, returning the offset after the last complete line
+    private static long readJournal(RandomAccessFile journal, long offset, Set<String> changed) throws IOException {
+        byte[] bytes = new byte[(int) (journal.length() - offset)];
+        journal.seek(offset);
+        journal.readFully(bytes);
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                changed.add(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+        return offset + lineStart;
+    }
+
+    /// list and hash the whole working directory
+    private TreeMap<String, String> scan() {
+        TreeMap<String, String> files = new TreeMap<>();
+        for (String name: plainFilenamesIn(cwd)) {
+            if (!name.equals(".gitlet")) {
+                files.put(name, sha1OfFile(join(cwd, name)));
+            }
+        }
+        return files;
+    }
+
+    /** the working files as of an offset of the journal of a session */
+    private static class Snapshot {
+        private final String session;
+        private final long offset;
+        private final TreeMap<String, String> files;
+
+        Snapshot(String session, long offset, TreeMap<String, String> files) {
+            this.session = session;
+            this.offset = offset;
+            this.files = files;
+        }
+    }
+
+    /// the last snapshot, null if there is none (or it can't be read)
+    private Snapshot readSnapshot() {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotFile.toPath())))) {
+            String session = in.readUTF();
+            long offset = in.readLong();
+            int count = in.readInt();
+            TreeMap<String, String> files = new TreeMap<>();
+            byte[] raw = new byte[ObjectId.RAW_LENGTH];
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                in.readFully(raw);
+                files.put(name, ObjectId.toHex(raw, 0));
+            }
+            return new Snapshot(session, offset, files);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /// replace the snapshot, atomically: several readers may be asking at once
+    private void writeSnapshot(Snapshot snapshot) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeUTF(snapshot.session);
+            data.writeLong(snapshot.offset);
+            data.writeInt(snapshot.files.size());
+            byte[] raw = new byte[ObjectId.RAW_LENGTH];
+            for (Map.Entry<String, String> file: snapshot.files.entrySet()) {
+                data.writeUTF(file.getKey());
+                ObjectId.fromHex(file.getValue()).copyRawTo(raw, 0);
+                data.write(raw);
+            }
+        } catch (IOException excp) {
+            return;
+        }
+        writeContentsAtomically(snapshotFile, tmpDir, (Object) bytes.toByteArray());
+    }
+}
@@ -0,0 +1,168 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static gitlet.Utils.*;
+
+/** Mark-and-sweep garbage collection of the object store.
+ *  Marking starts from the given root commits and blobs and follows parents and file maps,
+ *  one fork-join task per commit so that independent branches of history are walked in parallel.
+ *  Sweeping deletes every commit, graph entry and blob that was not marked
+ *  and is older than the grace period (so objects of a command running concurrently survive).
+ *
+ *  @author x-yy-x
+ */
+class GarbageCollector {
+    private final ObjectDatabase objects;
+    /** commits whose parents were never fetched (shallow repository), their parents aren't looked for */
+    private final Set<String> shallowCommits;
+
+    private final Set<String> markedCommits = ConcurrentHashMap.newKeySet();
+    private final Set<String> markedBlobs = ConcurrentHashMap.newKeySet();
+    /** problems met while marking, sweeping is refused if there is any */
+    private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+    /** mark tasks submitted but not finished yet, plus one held by mark() while it submits the roots */
+    private final AtomicLong pendingTasks = new AtomicLong(1);
+    /** the command running gc, for the events of the marking threads */
+    private final String command = GitletEvents.getCommand();
+    private final CountDownLatch markingDone = new CountDownLatch(1);
+
+    private int commitsSwept;
+    private int blobsSwept;
+    private long bytesSwept;
+    private int objectsInGracePeriod;
+
+    GarbageCollector(ObjectDatabase objects, Set<String> shallowCommits) {
+        this.objects = objects;
+        this.shallowCommits = shallowCommits;
+    }
+
+    /** mark everything reachable from ROOTCOMMITS, plus ROOTBLOBS (e.g. the staging area) */
+    void mark(Collection<String> rootCommits, Collection<String> rootBlobs) {
+        markedBlobs.addAll(rootBlobs);
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        for (String commitId: rootCommits) {
+            if (markedCommits.add(commitId)) {
+                pendingTasks.incrementAndGet();
+                pool.execute(new MarkTask(commitId));
+            }
+        }
+        taskFinished();
+        try {
+            markingDone.await();
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            errors.add("marking interrupted");
+        }
+        pool.shutdown();
+    }
+
+    private void taskFinished() {
+        if (pendingTasks.decrementAndGet() == 0) {
+            markingDone.countDown();
+        }
+    }
+
+    /** marks one commit and its blobs, then forks a task for each parent not marked yet.
+     *  parents are forked rather than joined so that long histories don't overflow the stack,
+     *  pendingTasks tells when the whole walk is over */
+    private class MarkTask extends RecursiveAction {
+        private static final long serialVersionUID = 4861526380291047113L;
+
+        private final String commitId;
+
+        MarkTask(String commitId) {
+            this.commitId = commitId;
+        }
+
+        @Override
+        protected void compute() {
+            try (GitletEvents.CommandScope events = GitletEvents.command(command)) {
+                markCommit();
+            } finally {
+                taskFinished();
+            }
+        }
+
+        private void markCommit() {
+            if (!objects.has(ObjectDatabase.Kind.COMMIT, commitId)) {
+                errors.add("missing commit " + commitId);
+                return;
+            }
+            Commit commit;
+            try {
+                commit = deserialize(objects.read(ObjectDatabase.Kind.COMMIT, commitId), Commit.class);
+            } catch (IllegalArgumentException excp) {
+                errors.add("unreadable commit " + commitId);
+                return;
+            }
+            markedBlobs.addAll(commit.getMapFromFilenameToId().values());
+            if (shallowCommits.contains(commitId)) {
+                return;
+            }
+            for (String parentId: new String[] {commit.getParent1ID(), commit.getParent2ID()}) {
+                if (!parentId.isEmpty() && markedCommits.add(parentId)) {
+                    pendingTasks.incrementAndGet();
+                    new MarkTask(parentId).fork();
+                }
+            }
+        }
+    }
+
+    List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    /** delete (or only count, if DRYRUN) every unmarked object written before GRACEMILLIS ago */
+    void sweep(long graceMillis, boolean dryRun) {
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        for (String commitId: objects.ids(ObjectDatabase.Kind.COMMIT)) {
+            if (markedCommits.contains(commitId)) {
+                continue;
+            }
+            if (objects.lastModified(ObjectDatabase.Kind.COMMIT, commitId) > cutoff) {
+                objectsInGracePeriod++;
+                continue;
+            }
+            commitsSwept++;
+            bytesSwept += objects.size(ObjectDatabase.Kind.COMMIT, commitId);
+            bytesSwept += Math.max(objects.size(ObjectDatabase.Kind.GRAPH, commitId), 0);
+            if (!dryRun) {
+                objects.delete(ObjectDatabase.Kind.COMMIT, commitId);
+                objects.delete(ObjectDatabase.Kind.GRAPH, commitId);
+            }
+        }
+        for (String blobId: objects.ids(ObjectDatabase.Kind.BLOB)) {
+            if (markedBlobs.contains(blobId)) {
+                continue;
+            }
+            if (objects.lastModified(ObjectDatabase.Kind.BLOB, blobId) > cutoff) {
+                objectsInGracePeriod++;
+                continue;
+            }
+            blobsSwept++;
+            bytesSwept += objects.size(ObjectDatabase.Kind.BLOB, blobId);
+            if (!dryRun) {
+                objects.delete(ObjectDatabase.Kind.BLOB, blobId);
+            }
+        }
+    }
+
+    /** summary of the last sweep */
+    String report(boolean dryRun) {
+        return String.format("%s %d unreachable commits and %d unreachable blobs (%d bytes).%n"
+                        + "Reachable: %d commits, %d blobs. Kept %d unreachable objects inside the grace period.",
+                dryRun ? "Would remove" : "Removed", commitsSwept, blobsSwept, bytesSwept,
+                markedCommits.size(), markedBlobs.size(), objectsInGracePeriod);
+    }
+}
@@ -0,0 +1,178 @@
+package gitlet;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** Java Flight Recorder events of gitlet.
+ *  They are always compiled in, but only created once JFR is up (a recording was started, at launch
+ *  or later with jcmd): creating the first event would initialize JFR, hundreds of ms on every run.
+ *  Until then the begin methods return null, a single check of a volatile flag.
+ *  Even then, the calling code only fills in their fields after event.shouldCommit() said yes.
+ *  Record a command with e.g.
+ *      java -XX:StartFlightRecording=filename=gitlet.jfr,settings=profile gitlet.Main merge other
+ *
+ *  @author x-yy-x
+ */
+final class GitletEvents {
+
+    /** the command each thread is running, attached to its events: handles used concurrently
+     *  in one process each run their own */
+    private static final ThreadLocal<String> COMMAND = ThreadLocal.withInitial(() -> "");
+
+    private GitletEvents() {
+    }
+
+    /** the events of this thread are of the command NAME until the scope is closed
+     *  (try (GitletEvents.CommandScope c = GitletEvents.command("merge")) ...), then of the one before */
+    static CommandScope command(String name) {
+        CommandScope scope = new CommandScope(COMMAND.get());
+        COMMAND.set(name);
+        return scope;
+    }
+
+    static final class CommandScope implements AutoCloseable {
+        private final String previous;
+
+        private CommandScope(String previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            COMMAND.set(previous);
+        }
+    }
+
+    static String getCommand() {
+        return COMMAND.get();
+    }
+
+    /// whether events may be recorded: JFR was initialized by a recording
+    static boolean enabled() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /* the events begun, null when JFR isn't up */
+
+    static ObjectRead beginObjectRead() {
+        return enabled() ? begin(new ObjectRead()) : null;
+    }
+
+    static ObjectWrite beginObjectWrite() {
+        return enabled() ? begin(new ObjectWrite()) : null;
+    }
+
+    static Hash beginHash() {
+        return enabled() ? begin(new Hash()) : null;
+    }
+
+    static ParentLoad beginParentLoad() {
+        return enabled() ? begin(new ParentLoad()) : null;
+    }
+
+    static HistoryWalk beginHistoryWalk() {
+        return enabled() ? begin(new HistoryWalk()) : null;
+    }
+
+    private static <T extends Event> T begin(T event) {
+        event.begin();
+        return event;
+    }
+
+    @Name("gitlet.ObjectRead")
+    @Label("Object Read")
+    @Category({"Gitlet", "Object Store"})
+    @Description("A file of the repository read by Utils.readObject or Utils.readContents")
+    static class ObjectRead extends Event {
+        @Label("Object Id")
+        @Description("Name of the file read, the object id for commits and blobs")
+        String objectId;
+
+        @Label("Kind")
+        @Description("readObject or readContents")
+        String kind;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Command")
+        String command;
+    }
+
+    @Name("gitlet.ObjectWrite")
+    @Label("Object Write")
+    @Category({"Gitlet", "Object Store"})
+    @Description("A file of the repository written by Utils.writeContents (or writeObject)")
+    static class ObjectWrite extends Event {
+        @Label("Object Id")
+        @Description("Name of the file written, the object id for commits and blobs")
+        String objectId;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Command")
+        String command;
+    }
+
+    @Name("gitlet.Hash")
+    @Label("SHA-1 Hash")
+    @Category({"Gitlet", "Hashing"})
+    @Description("A SHA-1 computed by Utils.sha1 or Utils.sha1IdOfFile")
+    @StackTrace(false)
+    static class Hash extends Event {
+        @Label("Object Id")
+        @Description("The resulting id")
+        String objectId;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Command")
+        String command;
+    }
+
+    @Name("gitlet.ParentLoad")
+    @Label("Parent Load")
+    @Category({"Gitlet", "History"})
+    @Description("A parent commit dereferenced by Commit.getParent1 or getParent2")
+    static class ParentLoad extends Event {
+        @Label("Parent Id")
+        String objectId;
+
+        @Label("Parent Number")
+        @Description("1 for the first parent, 2 for the merged-in parent")
+        int parentNumber;
+
+        @Label("Command")
+        String command;
+    }
+
+    @Name("gitlet.HistoryWalk")
+    @Label("History Walk")
+    @Category({"Gitlet", "History"})
+    @Description("A breadth-first walk of the commit graph (Repository.bfsSearchHistoryFrom)")
+    static class HistoryWalk extends Event {
+        @Label("Start Id")
+        String objectId;
+
+        @Label("Commits Visited")
+        int commitsVisited;
+
+        @Label("Found")
+        @Description("Whether a commit of the destination set was reached, false for full walks")
+        boolean found;
+
+        @Label("Command")
+        String command;
+    }
+}
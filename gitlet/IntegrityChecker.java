@@ -0,0 +1,151 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/** Verifies the object store (the fsck command).
+ *  Every blob and commit is re-hashed and compared with the id it is stored under,
+ *  every commit is deserialized to check that its blobs, parents and graph entry are consistent.
+ *  Objects are independent of each other, so they are checked by parallel streams.
+ *
+ *  @author x-yy-x
+ */
+class IntegrityChecker {
+    private final ObjectDatabase objects;
+    /** commits whose parents were never fetched (shallow repository), their parents aren't looked for */
+    private final Set<String> shallowCommits;
+    /** which of the given missing blobs a promisor remote has (a partial repository gets them from there) */
+    private final Function<Set<String>, Set<String>> promisedBlobs;
+
+    private final Queue<String> problems = new ConcurrentLinkedQueue<>();
+    /** the blobs missing, each with a commit referring to it: only problems if no promisor has them */
+    private final Map<String, String> missingBlobs = new ConcurrentHashMap<>();
+    private final AtomicLong bytesHashed = new AtomicLong();
+    private int commitsChecked;
+    private int blobsChecked;
+    private long elapsedNanos;
+
+    IntegrityChecker(ObjectDatabase objects, Set<String> shallowCommits,
+                     Function<Set<String>, Set<String>> promisedBlobs) {
+        this.objects = objects;
+        this.shallowCommits = shallowCommits;
+        this.promisedBlobs = promisedBlobs;
+    }
+
+    /** check the whole object store, problems are available afterwards from getProblems */
+    void check() {
+        long start = System.nanoTime();
+        List<String> commitIds = objects.ids(ObjectDatabase.Kind.COMMIT);
+        List<String> blobIds = objects.ids(ObjectDatabase.Kind.BLOB);
+        // looking ids up in memory is much cheaper than one stat per reference
+        Set<String> existingCommits = new HashSet<>(commitIds);
+        Set<String> existingBlobs = new HashSet<>(blobIds);
+
+        // the events of the other threads are of this command too
+        String command = GitletEvents.getCommand();
+        blobIds.parallelStream().forEach(blobId -> {
+            try (GitletEvents.CommandScope events = GitletEvents.command(command)) {
+                checkHash(ObjectDatabase.Kind.BLOB, blobId);
+            }
+        });
+        commitIds.parallelStream().forEach(commitId -> {
+            try (GitletEvents.CommandScope events = GitletEvents.command(command)) {
+                checkCommit(commitId, existingCommits, existingBlobs);
+            }
+        });
+
+        // a blob missing here is only fine if a promisor still has it, not one lost before anyone else had it
+        Set<String> promised = missingBlobs.isEmpty() ? Set.of() : promisedBlobs.apply(missingBlobs.keySet());
+        for (Map.Entry<String, String> missing: missingBlobs.entrySet()) {
+            if (!promised.contains(missing.getKey())) {
+                problems.add("missing blob " + missing.getKey() + " (referenced by commit " + missing.getValue() + ")");
+            }
+        }
+
+        commitsChecked = commitIds.size();
+        blobsChecked = blobIds.size();
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    /** the content of the object must hash to its id, returns whether it does */
+    private boolean checkHash(ObjectDatabase.Kind kind, String id) {
+        String type = kind == ObjectDatabase.Kind.BLOB ? "blob" : "commit";
+        ObjectId contentId;
+        try {
+            contentId = sha1IdOf(objects.stream(kind, id));
+        } catch (IllegalArgumentException excp) {
+            problems.add("unreadable " + type + " " + id);
+            return false;
+        }
+        bytesHashed.addAndGet(objects.size(kind, id));
+        if (!contentId.equalsHex(id)) {
+            problems.add("corrupt " + type + " " + id);
+            return false;
+        }
+        return true;
+    }
+
+    private void checkCommit(String commitId, Set<String> existingCommits, Set<String> existingBlobs) {
+        if (!checkHash(ObjectDatabase.Kind.COMMIT, commitId)) {
+            return;
+        }
+        Commit commit;
+        try {
+            commit = deserialize(objects.read(ObjectDatabase.Kind.COMMIT, commitId), Commit.class);
+        } catch (IllegalArgumentException excp) {
+            problems.add("unreadable commit " + commitId);
+            return;
+        }
+        for (String blobId: commit.getMapFromFilenameToId().values()) {
+            if (!existingBlobs.contains(blobId)) {
+                missingBlobs.putIfAbsent(blobId, commitId);
+            }
+        }
+        for (String parentId: new String[] {commit.getParent1ID(), commit.getParent2ID()}) {
+            if (!parentId.isEmpty() && !existingCommits.contains(parentId) && !shallowCommits.contains(commitId)) {
+                problems.add("missing parent " + parentId + " of commit " + commitId);
+            }
+        }
+        if (objects.has(ObjectDatabase.Kind.GRAPH, commitId)) {
+            try {
+                CommitGraphEntry entry = deserialize(objects.read(ObjectDatabase.Kind.GRAPH, commitId),
+                        CommitGraphEntry.class);
+                if (!entry.getParent1ID().equals(commit.getParent1ID())
+                        || !entry.getParent2ID().equals(commit.getParent2ID())) {
+                    problems.add("graph entry of commit " + commitId + " disagrees with the commit");
+                }
+            } catch (IllegalArgumentException excp) {
+                problems.add("unreadable graph entry " + commitId);
+            }
+        }
+    }
+
+    List<String> getProblems() {
+        List<String> sorted = new ArrayList<>(problems);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /** objects and bytes checked, with the throughput */
+    String report() {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        double megabytes = bytesHashed.get() / (1024.0 * 1024.0);
+        int objects = commitsChecked + blobsChecked;
+        // the thread calling a parallel stream works too, besides the common pool
+        return String.format("Checked %d commits and %d blobs (%.1f MB) in %.2f s: %.0f objects/s, %.1f MB/s, %d threads.",
+                commitsChecked, blobsChecked, megabytes, seconds, objects / seconds, megabytes / seconds,
+                ForkJoinPool.getCommonPoolParallelism() + 1);
+    }
+}
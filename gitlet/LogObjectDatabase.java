@@ -0,0 +1,683 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static gitlet.Utils.*;
+
+/** An object database made of append-only segment files in objects/log, for repositories writing many objects:
+ *  a command appends all its objects to one file instead of creating a file per object.
+ *
+ *  A segment is the objects one after the other, then a footer listing them
+ *  (kind, raw id, offset, length, time written), then a trailer giving where the footer is.
+ *  The segment is written in the tmp directory and renamed into objects/log by flush,
+ *  so a segment is complete or absent, never torn; once there it never changes.
+ *  Opening the database reads the footers only, into an in-memory index from id to location,
+ *  later segments overriding earlier ones. A footer entry with length -1 is a tombstone, deleting the object.
+ *  Segments are named after the time they were written, so their names sort like their age.
+ *
+ *  Deleting writes tombstones; compact (gc) copies the live objects into one new segment and removes the old ones.
+ *  So that reads don't go through ever more segments, maintain merges segments of about the same size,
+ *  MERGE_FANOUT at a time (size-tiered): an object is copied again only when its segment has grown
+ *  MERGE_FANOUT times bigger, a few times over the life of the log, never the whole log at once.
+ *  Both remove segments, so they only run under the exclusive lock, when no other command is reading;
+ *  a long-lived handle reading a removed segment afterwards reloads the index and retries.
+ *
+ *  @author x-yy-x
+ */
+class LogObjectDatabase implements ObjectDatabase {
+    private static final String DIR_NAME = "log";
+    private static final String SUFFIX = ".seg";
+    /** "gitletLG", last bytes of every segment */
+    private static final long MAGIC = 0x6769746c65744c47L;
+    /** kind, id, offset, length, time written */
+    private static final int ENTRY_LENGTH = 1 + ObjectId.RAW_LENGTH + 8 + 8 + 8;
+    /** number of entries, offset of the footer, magic */
+    private static final int TRAILER_LENGTH = 4 + 8 + 8;
+    private static final long TOMBSTONE = -1;
+    /** segments of about the same size are merged into one once there are that many of them */
+    private static final int MERGE_FANOUT = 8;
+    /** segments up to this size count as the same size, the smallest */
+    private static final long SMALL_SEGMENT = 1 << 20;
+
+    /** one segment file, kept open for reading */
+    private static final class Segment {
+        private final String name;
+        private final FileChannel channel;
+
+        Segment(String name, FileChannel channel) {
+            this.name = name;
+            this.channel = channel;
+        }
+    }
+
+    /** where an object is: LENGTH bytes at OFFSET of SEGMENT */
+    private static final class Location {
+        private final Segment segment;
+        private final long offset;
+        private final long length;
+        private final long written;
+
+        Location(Segment segment, long offset, long length, long written) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.written = written;
+        }
+    }
+
+    /** a footer entry of the segment being written */
+    private static final class Entry {
+        private final Kind kind;
+        private final ObjectId id;
+        private final Location location;
+
+        Entry(Kind kind, ObjectId id, Location location) {
+            this.kind = kind;
+            this.id = id;
+            this.location = location;
+        }
+    }
+
+    private final File logDir;
+    private final File tmpDir;
+
+    private final Map<Kind, Map<ObjectId, Location>> index = new EnumMap<>(Kind.class);
+    /** the segments read into the index, by file name */
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+    /** whether the index was read at all */
+    private volatile boolean indexed;
+    /** whether a segment holds objects deleted or written again since, which compact would drop */
+    private boolean hasGarbage;
+
+    /** the segment being written, in tmpDir, null if nothing was written since the last flush */
+    private Segment pending;
+    private File pendingFile;
+    private long pendingSize;
+    private final List<Entry> pendingEntries = new ArrayList<>();
+
+    LogObjectDatabase(File objectsDir, File tmpDir) {
+        this.logDir = join(objectsDir, DIR_NAME);
+        this.tmpDir = tmpDir;
+        for (Kind kind: Kind.values()) {
+            index.put(kind, new ConcurrentHashMap<>());
+        }
+    }
+
+    /** whether the repository whose objects directory is OBJECTSDIR keeps them in a log */
+    static boolean isLog(File objectsDir) {
+        return join(objectsDir, DIR_NAME).isDirectory();
+    }
+
+    /** make the objects directory OBJECTSDIR of a new repository a log one */
+    static void create(File objectsDir) {
+        join(objectsDir, DIR_NAME).mkdirs();
+    }
+
+    /// the location of the object, looking for segments written by others if it isn't known
+    private Location locate(Kind kind, String id) {
+        if (!ObjectId.isHex(id)) {
+            return null;
+        }
+        ObjectId key = ObjectId.fromHex(id);
+        Location location = index.get(kind).get(key);
+        if (location == null && stale()) {
+            refresh(false);
+            location = index.get(kind).get(key);
+        }
+        return location;
+    }
+
+    /** whether other handles installed or removed segments since the index was brought up to date.
+     *  The names tell, not the modification time of logDir: two changes within its granularity look like one
+     */
+    private boolean stale() {
+        String[] names = segmentNames();
+        if (names.length != segments.size()) {
+            return true;
+        }
+        for (String name: names) {
+            if (!segments.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String[] segmentNames() {
+        String[] names = logDir.list((dir, name) -> name.endsWith(SUFFIX));
+        if (names == null) {
+            throw new GitletException("The object log " + logDir + " is missing.");
+        }
+        return names;
+    }
+
+    /** read the footers of the segments not in the index yet;
+     *  if one in the index is gone (compacted by another handle), or if RELOAD, rebuild the index from scratch
+     */
+    private synchronized void refresh(boolean reload) {
+        String[] names = segmentNames();
+        List<String> present = new ArrayList<>(names.length);
+        Collections.addAll(present, names);
+        Collections.sort(present);
+        boolean rebuild = reload || !present.containsAll(segments.keySet());
+        if (rebuild) {
+            for (Segment segment: segments.values()) {
+                closeQuietly(segment);
+            }
+            segments.clear();
+            for (Map<ObjectId, Location> locations: index.values()) {
+                locations.clear();
+            }
+            hasGarbage = false;
+        }
+        for (String name: present) {
+            if (!segments.containsKey(name)) {
+                load(name);
+            }
+        }
+        if (rebuild) {
+            // what this handle wrote and didn't flush yet is only in the pending segment, and comes last
+            for (Entry entry: pendingEntries) {
+                apply(entry.kind, entry.id, entry.location);
+            }
+        }
+        indexed = true;
+    }
+
+    /// read the footer of the segment NAME into the index
+    private void load(String name) {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(join(logDir, name).toPath(), StandardOpenOption.READ);
+        } catch (IOException excp) {
+            throw damaged(name);
+        }
+        Segment segment = new Segment(name, channel);
+        try {
+            long size = channel.size();
+            if (size < TRAILER_LENGTH) {
+                throw new IOException("too short");
+            }
+            ByteBuffer trailer = readFully(channel, size - TRAILER_LENGTH, TRAILER_LENGTH);
+            int count = trailer.getInt();
+            long footerOffset = trailer.getLong();
+            if (trailer.getLong() != MAGIC || footerOffset + (long) count * ENTRY_LENGTH != size - TRAILER_LENGTH) {
+                throw new IOException("no footer");
+            }
+            for (Entry entry: footerEntries(segment, footerOffset, count)) {
+                apply(entry.kind, entry.id, entry.location);
+            }
+            Profiler.count(Profiler.Counter.FILES_READ);
+            Profiler.count(Profiler.Counter.BYTES_READ, (long) count * ENTRY_LENGTH + TRAILER_LENGTH);
+        } catch (IOException | ArrayIndexOutOfBoundsException excp) {
+            closeQuietly(segment);
+            throw damaged(name);
+        }
+        segments.put(name, segment);
+    }
+
+    /// the COUNT entries of the footer at FOOTEROFFSET of SEGMENT
+    private static List<Entry> footerEntries(Segment segment, long footerOffset, int count) throws IOException {
+        ByteBuffer footer = readFully(segment.channel, footerOffset, count * ENTRY_LENGTH);
+        List<Entry> entries = new ArrayList<>(count);
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (int i = 0; i < count; i++) {
+            Kind kind = Kind.values()[footer.get()];
+            footer.get(raw);
+            long offset = footer.getLong();
+            long length = footer.getLong();
+            long written = footer.getLong();
+            entries.add(new Entry(kind, ObjectId.fromRaw(raw), new Location(segment, offset, length, written)));
+        }
+        return entries;
+    }
+
+    /// the entries of the footer of SEGMENT, already checked by load
+    private static List<Entry> footerEntries(Segment segment) throws IOException {
+        ByteBuffer trailer = readFully(segment.channel, segment.channel.size() - TRAILER_LENGTH, TRAILER_LENGTH);
+        int count = trailer.getInt();
+        return footerEntries(segment, trailer.getLong(), count);
+    }
+
+    /// record a footer entry in the index
+    private void apply(Kind kind, ObjectId id, Location location) {
+        Location previous;
+        if (location.length == TOMBSTONE) {
+            previous = index.get(kind).remove(id);
+        } else {
+            previous = index.get(kind).put(id, location);
+        }
+        if (previous != null || location.length == TOMBSTONE) {
+            hasGarbage = true;
+        }
+    }
+
+    private static GitletException damaged(String name) {
+        return new GitletException("The object segment " + name + " is damaged.");
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void closeQuietly(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException excp) {
+            // it is only read, nothing is lost
+        }
+    }
+
+    private void ensureIndexed() {
+        if (!indexed) {
+            refresh(false);
+        }
+    }
+
+    @Override
+    public boolean has(Kind kind, String id) {
+        ensureIndexed();
+        return locate(kind, id) != null;
+    }
+
+    @Override
+    public byte[] read(Kind kind, String id) {
+        ensureIndexed();
+        Location location = locate(kind, id);
+        if (location == null) {
+            throw new IllegalArgumentException("no " + kind.name().toLowerCase() + " " + id);
+        }
+        try {
+            return readAt(location);
+        } catch (IOException excp) {
+            // the segment was compacted away meanwhile: find where the object went
+            refresh(true);
+            location = locate(kind, id);
+            if (location == null) {
+                throw new IllegalArgumentException("no " + kind.name().toLowerCase() + " " + id);
+            }
+            try {
+                return readAt(location);
+            } catch (IOException again) {
+                throw new IllegalArgumentException(again.getMessage());
+            }
+        }
+    }
+
+    private byte[] readAt(Location location) throws IOException {
+        byte[] contents = readFully(location.segment.channel, location.offset, (int) location.length).array();
+        Profiler.count(Profiler.Counter.BYTES_READ, contents.length);
+        return contents;
+    }
+
+    @Override
+    public InputStream stream(Kind kind, String id) {
+        ensureIndexed();
+        Location location = locate(kind, id);
+        if (location == null) {
+            throw new IllegalArgumentException("no " + kind.name().toLowerCase() + " " + id);
+        }
+        return new ObjectStream(kind, id, location);
+    }
+
+    /** an object read from its segment as it is consumed, never whole in memory.
+     *  The reads are positioned, the channel of the segment being shared; if the segment is compacted away
+     *  meanwhile, the rest is read from wherever the object went (the same bytes, it is named after them).
+     */
+    private final class ObjectStream extends InputStream {
+        private final Kind kind;
+        private final String id;
+        private Location location;
+        /** how many bytes of the object were read */
+        private long position;
+
+        ObjectStream(Kind kind, String id, Location location) {
+            this.kind = kind;
+            this.id = id;
+            this.location = location;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long remaining = location.length - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining));
+            int count;
+            try {
+                count = location.segment.channel.read(target, location.offset + position);
+            } catch (IOException excp) {
+                relocate(excp);
+                return read(buffer, offset, length);
+            }
+            if (count < 0) {
+                throw new IOException("unexpected end of segment");
+            }
+            position += count;
+            Profiler.count(Profiler.Counter.BYTES_READ, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, location.length - position);
+        }
+
+        /// find where the object went, or throw EXCP if it isn't elsewhere
+        private void relocate(IOException excp) throws IOException {
+            refresh(true);
+            Location moved = locate(kind, id);
+            if (moved == null || moved.segment.name.equals(location.segment.name)) {
+                throw excp;
+            }
+            location = moved;
+        }
+    }
+
+    @Override
+    public synchronized void write(Kind kind, String id, byte[] contents) {
+        ensureIndexed();
+        ObjectId key = ObjectId.fromHex(id);
+        if (index.get(kind).containsKey(key)) {
+            return;
+        }
+        apply(kind, key, append(kind, key, contents, System.currentTimeMillis()));
+    }
+
+    /// add the object, written at WRITTEN, to the pending segment, returning where it is
+    private Location append(Kind kind, ObjectId id, byte[] contents, long written) {
+        openPending();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                pendingSize += pending.channel.write(buffer, pendingSize);
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write to the object log: " + excp.getMessage());
+        }
+        Location location = new Location(pending, pendingSize - contents.length, contents.length, written);
+        pendingEntries.add(new Entry(kind, id, location));
+        Profiler.count(Profiler.Counter.BYTES_WRITTEN, contents.length);
+        return location;
+    }
+
+    /// start a pending segment, if there is none
+    private void openPending() {
+        if (pending != null) {
+            return;
+        }
+        try {
+            tmpDir.mkdirs();
+            pendingFile = File.createTempFile("segment", ".tmp", tmpDir);
+            FileChannel channel = FileChannel.open(pendingFile.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            pending = new Segment(newSegmentName(), channel);
+            pendingSize = 0;
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write to the object log: " + excp.getMessage());
+        }
+    }
+
+    private static String newSegmentName() {
+        return String.format("%013d-%08x%s", System.currentTimeMillis(), ThreadLocalRandom.current().nextInt(),
+                SUFFIX);
+    }
+
+    @Override
+    public long size(Kind kind, String id) {
+        ensureIndexed();
+        Location location = locate(kind, id);
+        return location == null ? -1 : location.length;
+    }
+
+    @Override
+    public long lastModified(Kind kind, String id) {
+        ensureIndexed();
+        Location location = locate(kind, id);
+        return location == null ? 0 : location.written;
+    }
+
+    @Override
+    public List<String> ids(Kind kind) {
+        ensureIndexed();
+        if (stale()) {
+            refresh(false);
+        }
+        List<ObjectId> keys = new ArrayList<>(index.get(kind).keySet());
+        Collections.sort(keys);
+        List<String> ids = new ArrayList<>(keys.size());
+        for (ObjectId key: keys) {
+            ids.add(key.toHex());
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized void delete(Kind kind, String id) {
+        ensureIndexed();
+        if (!ObjectId.isHex(id)) {
+            return;
+        }
+        ObjectId key = ObjectId.fromHex(id);
+        Location location = index.get(kind).remove(key);
+        if (location == null) {
+            return;
+        }
+        pendingEntries.removeIf(entry -> entry.kind == kind && entry.id.equals(key));
+        if (location.segment != pending) {
+            // an object of an earlier segment needs a tombstone, the segment itself never changes
+            openPending();
+            pendingEntries.add(new Entry(kind, key, new Location(pending, pendingSize, TOMBSTONE,
+                    System.currentTimeMillis())));
+        }
+        hasGarbage = true;
+    }
+
+    /** make the pending segment part of the log */
+    @Override
+    public synchronized void flush() {
+        if (pending != null) {
+            install();
+        }
+    }
+
+    /** merge segments of the same size if there are enough of them */
+    @Override
+    public synchronized void maintain() {
+        flush();
+        mergeTiers();
+    }
+
+    /// merge MERGE_FANOUT segments of the same size into one, as long as there are that many of some size
+    private void mergeTiers() {
+        refresh(false);
+        while (true) {
+            Map<Integer, List<Segment>> tiers = new TreeMap<>();
+            for (Segment segment: segments.values()) {
+                tiers.computeIfAbsent(tier(segment), tier -> new ArrayList<>()).add(segment);
+            }
+            List<Segment> full = null;
+            for (List<Segment> tier: tiers.values()) {
+                if (tier.size() >= MERGE_FANOUT) {
+                    full = tier;
+                    break;
+                }
+            }
+            if (full == null) {
+                return;
+            }
+            merge(full);
+        }
+    }
+
+    /// the size class of the segment: 0 up to SMALL_SEGMENT, 1 up to MERGE_FANOUT times that, and so on
+    private static int tier(Segment segment) {
+        long size;
+        try {
+            size = segment.channel.size();
+        } catch (IOException excp) {
+            size = 0;
+        }
+        int tier = 0;
+        for (long limit = SMALL_SEGMENT; size > limit; limit *= MERGE_FANOUT) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /** copy the live objects of the segments MERGED into one new segment, then remove them.
+     *  The new segment sorts after every other one, so it takes only what is true of the whole log:
+     *  the objects whose newest copy is in MERGED, and the tombstones of MERGED for objects deleted for good
+     *  (which an older segment may still have). The other segments are left alone, garbage in MERGED included.
+     */
+    private void merge(List<Segment> merged) {
+        try (Profiler.Phase phase = Profiler.phase("merge segments")) {
+            Set<Segment> mergedSet = new HashSet<>(merged);
+            Map<Kind, Map<ObjectId, Location>> moved = new EnumMap<>(Kind.class);
+            openPending();
+            try {
+                for (Kind kind: Kind.values()) {
+                    Map<ObjectId, Location> locations = new HashMap<>();
+                    for (Map.Entry<ObjectId, Location> object: index.get(kind).entrySet()) {
+                        Location location = object.getValue();
+                        if (mergedSet.contains(location.segment)) {
+                            locations.put(object.getKey(),
+                                    append(kind, object.getKey(), readAt(location), location.written));
+                        }
+                    }
+                    moved.put(kind, locations);
+                }
+                for (Segment segment: merged) {
+                    for (Entry entry: footerEntries(segment)) {
+                        if (entry.location.length == TOMBSTONE && !index.get(entry.kind).containsKey(entry.id)) {
+                            pendingEntries.add(new Entry(entry.kind, entry.id,
+                                    new Location(pending, pendingSize, TOMBSTONE, entry.location.written)));
+                        }
+                    }
+                }
+            } catch (IOException excp) {
+                throw new GitletException("Cannot merge the object log: " + excp.getMessage());
+            }
+            install();
+            // the new segment has to be on disk before the only other copy of the objects goes
+            Durability.sync();
+            for (Segment segment: merged) {
+                closeQuietly(segment);
+                segments.remove(segment.name);
+                join(logDir, segment.name).delete();
+            }
+            for (Kind kind: Kind.values()) {
+                index.get(kind).putAll(moved.get(kind));
+            }
+        }
+    }
+
+    /// write the footer of the pending segment and rename it into objects/log
+    private void install() {
+        try (Profiler.Phase phase = Profiler.phase("flush objects")) {
+            ByteBuffer footer = ByteBuffer.allocate(pendingEntries.size() * ENTRY_LENGTH + TRAILER_LENGTH);
+            byte[] raw = new byte[ObjectId.RAW_LENGTH];
+            for (Entry entry: pendingEntries) {
+                footer.put((byte) entry.kind.ordinal());
+                entry.id.copyRawTo(raw, 0);
+                footer.put(raw);
+                footer.putLong(entry.location.offset);
+                footer.putLong(entry.location.length);
+                footer.putLong(entry.location.written);
+            }
+            footer.putInt(pendingEntries.size());
+            footer.putLong(pendingSize);
+            footer.putLong(MAGIC);
+            footer.flip();
+            while (footer.hasRemaining()) {
+                pendingSize += pending.channel.write(footer, pendingSize);
+            }
+            Durability.install(pendingFile, join(logDir, pending.name));
+            Profiler.count(Profiler.Counter.FILES_WRITTEN);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write to the object log: " + excp.getMessage());
+        } finally {
+            pendingFile.delete(); // only still there if the rename failed
+        }
+        // the channel stays open for reading, the file is the same after the rename
+        segments.put(pending.name, pending);
+        pending = null;
+        pendingEntries.clear();
+    }
+
+    /** copy every live object into one new segment, then remove the segments they were in */
+    @Override
+    public synchronized void compact() {
+        if (pending != null) {
+            install();
+        }
+        refresh(false);
+        if (segments.size() <= 1 && !hasGarbage) {
+            return;
+        }
+        try (Profiler.Phase phase = Profiler.phase("compact objects")) {
+            List<Segment> compacted = new ArrayList<>(segments.values());
+            Map<Kind, Map<ObjectId, Location>> moved = new EnumMap<>(Kind.class);
+            for (Kind kind: Kind.values()) {
+                Map<ObjectId, Location> locations = new HashMap<>();
+                for (Map.Entry<ObjectId, Location> object: index.get(kind).entrySet()) {
+                    try {
+                        Location location = object.getValue();
+                        locations.put(object.getKey(),
+                                append(kind, object.getKey(), readAt(location), location.written));
+                    } catch (IOException excp) {
+                        throw new GitletException("Cannot compact the object log: " + excp.getMessage());
+                    }
+                }
+                moved.put(kind, locations);
+            }
+            if (pending != null) {
+                install();
+                // the new segment has to be on disk before the only other copy of the objects goes
+                Durability.sync();
+            }
+            for (Segment segment: compacted) {
+                closeQuietly(segment);
+                segments.remove(segment.name);
+                join(logDir, segment.name).delete();
+            }
+            for (Kind kind: Kind.values()) {
+                index.get(kind).putAll(moved.get(kind));
+            }
+            hasGarbage = false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** The object layout gitlet always had: every object is a file named by its id,
+ *  in objects/commits, objects/graph or objects/blobs.
+ *  Files are written to the tmp directory and renamed into place (see Durability).
+ *
+ *  @author x-yy-x
+ */
+class LooseObjectDatabase implements ObjectDatabase {
+    private final File objectsDir;
+    private final File tmpDir;
+
+    LooseObjectDatabase(File objectsDir, File tmpDir) {
+        this.objectsDir = objectsDir;
+        this.tmpDir = tmpDir;
+    }
+
+    /** the directory of the objects of that kind */
+    File dirOf(Kind kind) {
+        return join(objectsDir, kind.dirName());
+    }
+
+    private File fileOf(Kind kind, String id) {
+        return join(objectsDir, kind.dirName(), id);
+    }
+
+    @Override
+    public boolean has(Kind kind, String id) {
+        return fileOf(kind, id).exists();
+    }
+
+    @Override
+    public byte[] read(Kind kind, String id) {
+        return readContents(fileOf(kind, id));
+    }
+
+    @Override
+    public InputStream stream(Kind kind, String id) {
+        try {
+            return Files.newInputStream(fileOf(kind, id).toPath());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** objects are named after their content, so one already stored whole isn't written again:
+     *  rewriting it would open a window in which a referenced object is only partly on disk
+     */
+    @Override
+    public void write(Kind kind, String id, byte[] contents) {
+        File file = fileOf(kind, id);
+        if (file.isFile() && file.length() == contents.length) {
+            return;
+        }
+        // repositories created before the commit graph existed don't have its directory yet
+        if (kind == Kind.GRAPH) {
+            dirOf(kind).mkdir();
+        }
+        writeContentsAtomically(file, tmpDir, (Object) contents);
+    }
+
+    @Override
+    public long size(Kind kind, String id) {
+        File file = fileOf(kind, id);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public long lastModified(Kind kind, String id) {
+        return fileOf(kind, id).lastModified();
+    }
+
+    @Override
+    public List<String> ids(Kind kind) {
+        List<String> ids = plainFilenamesIn(dirOf(kind));
+        return ids == null ? Collections.emptyList() : ids;
+    }
+
+    @Override
+    public void delete(Kind kind, String id) {
+        fileOf(kind, id).delete();
+    }
+}
@@ -1,30 +1,181 @@
 package gitlet;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
+ *  It only parses the command line: the commands are those of a Repository on the working directory.
  *  @author x-yy-x
  */
 public class Main {
 
-    /** Usage: java gitlet.Main ARGS, where ARGS contains
+    /** unreachable objects younger than this are kept by gc (one hour) */
+    private static final long DEFAULT_GC_GRACE_SECONDS = 3600;
+
+    /** Usage: java gitlet.Main [--profile[=json[:FILE]]] ARGS, where ARGS contains
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
+     *  --profile (or the environment variable GITLET_PROFILE with the same value)
+     *  prints where the command spent its time to stderr, as text or JSON, or dumps it as JSON to FILE.
      */
     public static void main(String[] args) {
+        String profileSpec = System.getenv("GITLET_PROFILE");
+        if (args.length > 0 && (args[0].equals("--profile") || args[0].startsWith("--profile="))) {
+            profileSpec = args[0].equals("--profile") ? "text" : args[0].substring("--profile=".length());
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (profileSpec != null && !profileSpec.isEmpty()) {
+            Profiler.enable(profileSpec);
+        }
+
         if (args.length == 0) {
             System.out.println("Please enter a command.");
             return;
         }
         Repository repo = new Repository();
+        // every command locks the repository itself, see Repository
+        try (GitletEvents.CommandScope events = GitletEvents.command(args[0]);
+             Profiler.Phase command = Profiler.phase(args[0])) {
+            runCommand(repo, args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } finally {
+            Profiler.report();
+        }
+    }
+
+    /** run the command in ARGS[0] with its operands */
+    private static void runCommand(Repository repo, String[] args) {
         String firstArg = args[0];
         switch (firstArg) {
             case "init":
-                // handle the `init` command
+                // handles 'init [--object-store=loose|log]'
+                if (args.length == 2 && args[1].startsWith("--object-store=")) {
+                    repo.init(args[1].substring("--object-store=".length()));
+                    return;
+                }
                 if (isIncorrectOperands(args, 1)) {
                     return;
                 }
                 repo.init();
                 break;
+            case "sparse-checkout":
+                // handles 'sparse-checkout set [pattern]...', 'sparse-checkout list' and 'sparse-checkout disable'
+                if (args.length >= 3 && args[1].equals("set")) {
+                    repo.sparseCheckoutSet(Arrays.asList(args).subList(2, args.length));
+                } else if (args.length == 2 && args[1].equals("list")) {
+                    repo.sparseCheckoutList();
+                } else if (args.length == 2 && args[1].equals("disable")) {
+                    repo.sparseCheckoutSet(Collections.emptyList());
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
+                break;
+            case "archive":
+                // handles 'archive [branch or commit id] [--format=tar|zip] -o [file]',
+                // the format taken from the file name when not given
+                String archiveFile = null;
+                Archive.Format archiveFormat = null;
+                boolean archiveOperands = args.length >= 4;
+                for (int i = 2; i < args.length && archiveOperands; i++) {
+                    if (args[i].equals("-o") && i + 1 < args.length && archiveFile == null) {
+                        archiveFile = args[++i];
+                    } else if (args[i].startsWith("--format=") && archiveFormat == null) {
+                        archiveFormat = Archive.Format.of(args[i].substring("--format=".length()));
+                        archiveOperands = archiveFormat != null;
+                    } else {
+                        archiveOperands = false;
+                    }
+                }
+                if (!archiveOperands || archiveFile == null) {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
+                if (archiveFormat == null) {
+                    archiveFormat = archiveFile.endsWith(".zip") ? Archive.Format.ZIP : Archive.Format.TAR;
+                }
+                repo.archive(args[1], archiveFormat, archiveFile);
+                break;
+            case "bundle":
+                // handles 'bundle create [file] [branch]... [--exclude=[branch or commit id]]...'
+                // and 'bundle unbundle [file]'
+                if (args.length >= 4 && args[1].equals("create")) {
+                    List<String> bundleBranches = new ArrayList<>();
+                    List<String> bundleExcludes = new ArrayList<>();
+                    for (int i = 3; i < args.length; i++) {
+                        if (args[i].startsWith("--exclude=")) {
+                            bundleExcludes.add(args[i].substring("--exclude=".length()));
+                        } else {
+                            bundleBranches.add(args[i]);
+                        }
+                    }
+                    if (bundleBranches.isEmpty()) {
+                        System.out.println("Incorrect operands.");
+                        return;
+                    }
+                    repo.bundleCreate(args[2], bundleBranches, bundleExcludes);
+                } else if (args.length == 3 && args[1].equals("unbundle")) {
+                    repo.bundleUnbundle(args[2]);
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
+                break;
+            case "fast-import":
+                // handles 'fast-import', reading the stream from stdin
+                if (isIncorrectOperands(args, 1)) {
+                    return;
+                }
+                repo.fastImport(System.in);
+                break;
+            case "fsmonitor":
+                // handles 'fsmonitor start' and 'fsmonitor stop'
+                if (args.length == 2 && args[1].equals("start")) {
+                    repo.fsmonitorStart();
+                } else if (args.length == 2 && args[1].equals("stop")) {
+                    repo.fsmonitorStop();
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
+                break;
+            case "worktree":
+                // handles 'worktree add [directory] [branch name]' and 'worktree list'
+                if (args.length == 4 && args[1].equals("add")) {
+                    repo.worktreeAdd(args[2], args[3]);
+                } else if (args.length == 2 && args[1].equals("list")) {
+                    repo.worktreeList();
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
+                break;
+            case "clone":
+                // handles 'clone [source] [directory] [--depth=N]'
+                String cloneSource = null;
+                String cloneDir = null;
+                long cloneDepth = 0;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].startsWith("--depth=")) {
+                        cloneDepth = parseNonNegative(args[i].substring("--depth=".length()));
+                        if (cloneDepth < 1) {
+                            System.out.println("Incorrect operands.");
+                            return;
+                        }
+                    } else if (cloneSource == null) {
+                        cloneSource = args[i];
+                    } else if (cloneDir == null) {
+                        cloneDir = args[i];
+                    } else {
+                        System.out.println("Incorrect operands.");
+                        return;
+                    }
+                }
+                if (cloneSource == null) {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
+                repo.cloneRepository(cloneSource, cloneDir, (int) Math.min(cloneDepth, Integer.MAX_VALUE));
+                break;
             case "add":
                 // handle the `add [filename]` command
                 if (isIncorrectOperands(args, 2)) {
@@ -52,10 +203,16 @@ public class Main {
                 break;
             case "log":
                 // handle log
-                if (isIncorrectOperands(args, 1)) {
+                if (args.length == 1) {
+                    repo.log();
+                    break;
+                }
+                // handle 'log -- [file name]'
+                if (args.length != 3 || !args[1].equals("--")) {
+                    System.out.println("Incorrect operands.");
                     return;
                 }
-                repo.log();
+                repo.log(args[2]);
                 break;
             case "global-log":
                 // handle global-log
@@ -154,11 +311,28 @@ public class Main {
                 repo.push(args[1], args[2]);
                 break;
             case "fetch":
-                // handles 'fetch [remote name] [remote branch name]'
-                if (isIncorrectOperands(args, 3)) {
+                // handles 'fetch [remote name] [remote branch name] [--depth=N] [--filter=blob:none]'
+                if (args.length < 3) {
+                    System.out.println("Incorrect operands.");
                     return;
                 }
-                repo.fetch(args[1], args[2]);
+                long depth = 0;
+                boolean withoutBlobs = false;
+                for (int i = 3; i < args.length; i++) {
+                    if (args[i].startsWith("--depth=")) {
+                        depth = parseNonNegative(args[i].substring("--depth=".length()));
+                        if (depth < 1) {
+                            System.out.println("Incorrect operands.");
+                            return;
+                        }
+                    } else if (args[i].equals("--filter=blob:none")) {
+                        withoutBlobs = true;
+                    } else {
+                        System.out.println("Incorrect operands.");
+                        return;
+                    }
+                }
+                repo.fetch(args[1], args[2], (int) Math.min(depth, Integer.MAX_VALUE), withoutBlobs);
                 break;
             case "pull":
                 // handles 'pull [remote name] [remote branch name]'
@@ -167,11 +341,48 @@ public class Main {
                 }
                 repo.pull(args[1], args[2]);
                 break;
+            case "fsck":
+                // handles 'fsck'
+                if (isIncorrectOperands(args, 1)) {
+                    return;
+                }
+                repo.fsck();
+                break;
+            case "gc":
+                // handles 'gc [--dry-run] [--grace=seconds]'
+                boolean dryRun = false;
+                long graceSeconds = DEFAULT_GC_GRACE_SECONDS;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].equals("--dry-run")) {
+                        dryRun = true;
+                    } else if (args[i].startsWith("--grace=")) {
+                        graceSeconds = parseNonNegative(args[i].substring("--grace=".length()));
+                        if (graceSeconds < 0) {
+                            System.out.println("Incorrect operands.");
+                            return;
+                        }
+                    } else {
+                        System.out.println("Incorrect operands.");
+                        return;
+                    }
+                }
+                repo.gc(dryRun, graceSeconds);
+                break;
             default:
                 System.out.println("No command with that name exists.");
         }
     }
 
+    /** parse a non-negative number given on the command line, -1 if it isn't one */
+    private static long parseNonNegative(String number) {
+        try {
+            long value = Long.parseLong(number);
+            return value < 0 ? -1 : value;
+        } catch (NumberFormatException excp) {
+            return -1;
+        }
+    }
+
     private static boolean isIncorrectOperands(String[] args, int num) {
         if (args.length != num) {
             System.out.println("Incorrect operands.");
@@ -0,0 +1,423 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/** The files of a commit, path -> blob id, immutable and compact.
+ *  A TreeMap costs an entry, a path String and a 40-char id String per file,
+ *  which is hundreds of MB for a commit of 200k files. Here:
+ *  - the paths are sorted by their UTF-8 bytes and stored in one byte array, each as the length of
+ *    the prefix it shares with the previous path and the rest of it. Every RESTART_INTERVAL-th path
+ *    is stored whole, so a lookup is a binary search over those, then a scan of a few paths.
+ *  - the blob ids are stored as 20 raw bytes each, in one byte array.
+ *  It is a read-only Map, so the code reading file maps reads it unchanged.
+ *  Walk goes through several manifests side by side, in path order, for diffs and merges.
+ *
+ *  @author x-yy-x
+ */
+final class Manifest extends AbstractMap<String, String> {
+    /** a path is stored whole every that many paths */
+    private static final int RESTART_INTERVAL = 16;
+
+    static final Manifest EMPTY = of(Map.of());
+
+    private final int size;
+    /** (shared prefix length, rest length, rest bytes) of every path, the lengths as varints */
+    private final byte[] paths;
+    /** offset in paths of every RESTART_INTERVAL-th path */
+    private final int[] restarts;
+    /** the raw blob ids, RAW_LENGTH bytes each */
+    private final byte[] ids;
+    /** the ids as they were, only if some isn't a lower case hex id (never in a sound repository) */
+    private final String[] hexIds;
+
+    private Manifest(int size, byte[] paths, int[] restarts, byte[] ids, String[] hexIds) {
+        this.size = size;
+        this.paths = paths;
+        this.restarts = restarts;
+        this.ids = ids;
+        this.hexIds = hexIds;
+    }
+
+    /** the manifest of the files in FILES */
+    static Manifest of(Map<String, String> files) {
+        if (files instanceof Manifest) {
+            return (Manifest) files;
+        }
+        int size = files.size();
+        byte[][] pathBytes = new byte[size][];
+        String[] hexIds = new String[size];
+        boolean sorted = true;
+        boolean allHex = true;
+        int i = 0;
+        for (Map.Entry<String, String> file: files.entrySet()) {
+            pathBytes[i] = file.getKey().getBytes(StandardCharsets.UTF_8);
+            hexIds[i] = file.getValue();
+            sorted &= i == 0 || Arrays.compareUnsigned(pathBytes[i - 1], pathBytes[i]) < 0;
+            allHex &= isLowerHex(hexIds[i]);
+            i++;
+        }
+        if (!sorted) {
+            // String order differs from byte order past the BMP, and other maps aren't sorted at all
+            Integer[] order = new Integer[size];
+            for (int k = 0; k < size; k++) {
+                order[k] = k;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(pathBytes[a], pathBytes[b]));
+            byte[][] sortedPaths = new byte[size][];
+            String[] sortedIds = new String[size];
+            for (int k = 0; k < size; k++) {
+                sortedPaths[k] = pathBytes[order[k]];
+                sortedIds[k] = hexIds[order[k]];
+            }
+            return build(sortedPaths, sortedIds, allHex);
+        }
+        return build(pathBytes, hexIds, allHex);
+    }
+
+    private static Manifest build(byte[][] pathBytes, String[] hexIds, boolean allHex) {
+        int size = pathBytes.length;
+        ByteArrayOutputStream paths = new ByteArrayOutputStream();
+        int[] restarts = new int[(size + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+        byte[] ids = new byte[allHex ? size * ObjectId.RAW_LENGTH : 0];
+        for (int i = 0; i < size; i++) {
+            byte[] path = pathBytes[i];
+            int shared = 0;
+            if (i % RESTART_INTERVAL == 0) {
+                restarts[i / RESTART_INTERVAL] = paths.size();
+            } else {
+                byte[] previous = pathBytes[i - 1];
+                int limit = Math.min(previous.length, path.length);
+                while (shared < limit && previous[shared] == path[shared]) {
+                    shared++;
+                }
+            }
+            writeVarint(paths, shared);
+            writeVarint(paths, path.length - shared);
+            paths.write(path, shared, path.length - shared);
+            if (allHex) {
+                ObjectId.fromHex(hexIds[i]).copyRawTo(ids, i * ObjectId.RAW_LENGTH);
+            }
+        }
+        return new Manifest(size, paths.toByteArray(), restarts, ids, allHex ? null : hexIds);
+    }
+
+    /// whether ID is an id as sha1 writes it, so that it comes back the same from its raw bytes
+    private static boolean isLowerHex(String id) {
+        if (id == null || !ObjectId.isHex(id)) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.isUpperCase(id.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** the position of PATH in this manifest, -1 if it isn't there.
+     *  The key is compared with the paths where they are stored, nothing is decoded into a buffer
+     */
+    int indexOf(String path) {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        // the last restart path not greater than the key
+        int low = 0;
+        int high = restarts.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            // stored whole: a shared length of 0, in one byte, then the length and the bytes
+            int offset = restarts[mid] + 1;
+            int length = varintAt(offset);
+            offset += varintLength(length);
+            int cmp = Arrays.compareUnsigned(paths, offset, offset + length, key, 0, key.length);
+            if (cmp == 0) {
+                return mid * RESTART_INTERVAL;
+            } else if (cmp < 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return -1;
+        }
+        int offset = restarts[block];
+        int end = Math.min(size, (block + 1) * RESTART_INTERVAL);
+        // how many first bytes of the path before are those of the key
+        int matched = 0;
+        for (int i = block * RESTART_INTERVAL; i < end; i++) {
+            int shared = varintAt(offset);
+            offset += varintLength(shared);
+            int rest = varintAt(offset);
+            offset += varintLength(rest);
+            int start = offset;
+            offset += rest;
+            if (shared > matched) {
+                // it keeps the byte where the path before is smaller than the key
+                continue;
+            }
+            // its first SHARED bytes are those of the key, compare the rest
+            int common = Arrays.mismatch(paths, start, start + rest, key, shared, key.length);
+            if (common < 0) {
+                return i;
+            }
+            common += shared;
+            if (common < shared + rest
+                    && (common == key.length || (paths[start + common - shared] & 0xff) > (key[common] & 0xff))) {
+                return -1;
+            }
+            matched = common;
+        }
+        return -1;
+    }
+
+    /// the varint at OFFSET of paths
+    private int varintAt(int offset) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = paths[offset++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /// how many bytes VALUE takes as a varint
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /** the blob id of the I-th path, in hex */
+    String idAt(int i) {
+        if (hexIds != null) {
+            return hexIds[i];
+        }
+        return ObjectId.toHex(ids, i * ObjectId.RAW_LENGTH);
+    }
+
+    /** whether the I-th file here and the J-th of OTHER have the same blob, compared without building Strings */
+    boolean sameId(int i, Manifest other, int j) {
+        if (hexIds != null || other.hexIds != null) {
+            return Objects.equals(idAt(i), other.idAt(j));
+        }
+        return Arrays.equals(ids, i * ObjectId.RAW_LENGTH, (i + 1) * ObjectId.RAW_LENGTH,
+                other.ids, j * ObjectId.RAW_LENGTH, (j + 1) * ObjectId.RAW_LENGTH);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int i = indexOf((String) key);
+        return i < 0 ? null : idAt(i);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<>() {
+                    private final Cursor cursor = new Cursor();
+
+                    @Override
+                    public boolean hasNext() {
+                        return cursor.index + 1 < size;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        cursor.advance();
+                        return new SimpleImmutableEntry<>(cursor.path(), idAt(cursor.index));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /** goes through the paths of some manifests together, in order, each path once.
+     *  For every path, id(k) is its blob in the k-th manifest (null if it isn't there),
+     *  and same(a, b) tells whether two of them agree without building Strings.
+     */
+    static final class Walk {
+        private final Manifest[] manifests;
+        private final Manifest.Cursor[] cursors;
+        /** position of the current path in every manifest, -1 where it isn't */
+        private final int[] at;
+        private Manifest.Cursor smallest;
+        private String path;
+
+        private Walk(Manifest[] manifests) {
+            this.manifests = manifests;
+            this.cursors = new Manifest.Cursor[manifests.length];
+            this.at = new int[manifests.length];
+            for (int k = 0; k < manifests.length; k++) {
+                cursors[k] = manifests[k].new Cursor();
+                cursors[k].advance();
+            }
+        }
+
+        /** move to the next path, false once past the last one */
+        boolean next() {
+            if (smallest != null) {
+                for (int k = 0; k < cursors.length; k++) {
+                    if (at[k] >= 0) {
+                        cursors[k].advance();
+                    }
+                }
+            }
+            smallest = null;
+            path = null;
+            for (Manifest.Cursor cursor: cursors) {
+                if (!cursor.done() && (smallest == null || cursor.compareTo(smallest) < 0)) {
+                    smallest = cursor;
+                }
+            }
+            if (smallest == null) {
+                return false;
+            }
+            for (int k = 0; k < cursors.length; k++) {
+                at[k] = !cursors[k].done() && cursors[k].compareTo(smallest) == 0 ? cursors[k].index : -1;
+            }
+            return true;
+        }
+
+        String path() {
+            if (path == null) {
+                path = smallest.path();
+            }
+            return path;
+        }
+
+        String id(int k) {
+            return at[k] < 0 ? null : manifests[k].idAt(at[k]);
+        }
+
+        /** whether the path is in neither of manifests A and B, or has the same blob in both */
+        boolean same(int a, int b) {
+            if (at[a] < 0 || at[b] < 0) {
+                return at[a] < 0 && at[b] < 0;
+            }
+            return manifests[a].sameId(at[a], manifests[b], at[b]);
+        }
+    }
+
+    /** a Walk over MANIFESTS, before their first path */
+    static Walk walk(Manifest... manifests) {
+        return new Walk(manifests);
+    }
+
+    /** paths added, modified or removed from PREVIOUS to CURRENT, in order */
+    static List<String> changedPaths(Manifest current, Manifest previous) {
+        List<String> changed = new ArrayList<>();
+        Walk walk = walk(current, previous);
+        while (walk.next()) {
+            if (!walk.same(0, 1)) {
+                changed.add(walk.path());
+            }
+        }
+        return changed;
+    }
+
+    /** reads the paths one after the other from a restart point */
+    private final class Cursor {
+        /** the position of the current path, -1 before the first */
+        private int index = -1;
+        /** where the next path starts in paths */
+        private int offset;
+        private byte[] path = new byte[64];
+        private int length;
+
+        /** move to the first path of block B */
+        void seek(int b) {
+            index = b * RESTART_INTERVAL - 1;
+            offset = restarts[b];
+            length = 0;
+            advance();
+        }
+
+        /** move to the next path, if there is one */
+        void advance() {
+            index++;
+            if (index >= size) {
+                index = size;
+                return;
+            }
+            int shared = readVarint();
+            int rest = readVarint();
+            if (path.length < shared + rest) {
+                path = Arrays.copyOf(path, Math.max(2 * path.length, shared + rest));
+            }
+            System.arraycopy(paths, offset, path, shared, rest);
+            offset += rest;
+            length = shared + rest;
+        }
+
+        private int readVarint() {
+            int value = varintAt(offset);
+            offset += varintLength(value);
+            return value;
+        }
+
+        boolean done() {
+            return index >= size;
+        }
+
+        String path() {
+            return new String(path, 0, length, StandardCharsets.UTF_8);
+        }
+
+        int compareTo(byte[] key) {
+            return Arrays.compareUnsigned(path, 0, length, key, 0, key.length);
+        }
+
+        int compareTo(Cursor other) {
+            return Arrays.compareUnsigned(path, 0, length, other.path, 0, other.length);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** An object database kept in memory only, gone with the process.
+ *  For tests and benchmarks, where the cost or the leftovers of files are unwanted.
+ *
+ *  @author x-yy-x
+ */
+class MemoryObjectDatabase implements ObjectDatabase {
+
+    /** an object and when it was written */
+    private static final class Stored {
+        private final byte[] contents;
+        private final long written;
+
+        Stored(byte[] contents, long written) {
+            this.contents = contents;
+            this.written = written;
+        }
+    }
+
+    private final Map<Kind, Map<String, Stored>> objects = new EnumMap<>(Kind.class);
+
+    MemoryObjectDatabase() {
+        for (Kind kind: Kind.values()) {
+            objects.put(kind, new ConcurrentHashMap<>());
+        }
+    }
+
+    private Stored get(Kind kind, String id) {
+        Stored stored = objects.get(kind).get(id);
+        if (stored == null) {
+            throw new IllegalArgumentException("no " + kind.name().toLowerCase() + " " + id);
+        }
+        return stored;
+    }
+
+    @Override
+    public boolean has(Kind kind, String id) {
+        return objects.get(kind).containsKey(id);
+    }
+
+    @Override
+    public byte[] read(Kind kind, String id) {
+        return get(kind, id).contents.clone();
+    }
+
+    @Override
+    public InputStream stream(Kind kind, String id) {
+        return new ByteArrayInputStream(get(kind, id).contents);
+    }
+
+    @Override
+    public void write(Kind kind, String id, byte[] contents) {
+        objects.get(kind).putIfAbsent(id, new Stored(contents.clone(), System.currentTimeMillis()));
+    }
+
+    @Override
+    public long size(Kind kind, String id) {
+        Stored stored = objects.get(kind).get(id);
+        return stored == null ? -1 : stored.contents.length;
+    }
+
+    @Override
+    public long lastModified(Kind kind, String id) {
+        Stored stored = objects.get(kind).get(id);
+        return stored == null ? 0 : stored.written;
+    }
+
+    @Override
+    public List<String> ids(Kind kind) {
+        List<String> ids = new ArrayList<>(objects.get(kind).keySet());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Override
+    public void delete(Kind kind, String id) {
+        objects.get(kind).remove(id);
+    }
+}
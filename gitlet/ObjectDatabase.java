@@ -0,0 +1,86 @@
+package gitlet;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+
+/** Where a repository keeps its objects: commits, their commit graph entries and blobs.
+ *  Each kind of object is its own namespace of ids (a graph entry has the id of its commit).
+ *  Objects never change once written, so writing an id already stored does nothing.
+ *
+ *  There are three implementations:
+ *  - LooseObjectDatabase: one file per object, under objects/commits, objects/graph and objects/blobs.
+ *  - LogObjectDatabase: append-only segment files under objects/log, for repositories writing many objects.
+ *  - MemoryObjectDatabase: nothing on disk, for tests and benchmarks.
+ *  A repository made with init --object-store=log uses the log, any other the loose files (see open).
+ *
+ *  Implementations are safe for concurrent use; between processes, the RepositoryLock orders them.
+ *
+ *  @author x-yy-x
+ */
+interface ObjectDatabase {
+
+    /** the kinds of objects, each named like its directory in the loose layout */
+    enum Kind {
+        COMMIT("commits"), GRAPH("graph"), BLOB("blobs");
+
+        private final String dirName;
+
+        Kind(String dirName) {
+            this.dirName = dirName;
+        }
+
+        String dirName() {
+            return dirName;
+        }
+    }
+
+    /** the object database of the repository whose objects directory is OBJECTSDIR,
+     *  TMPDIR being where files are written before being renamed into place
+     */
+    static ObjectDatabase open(File objectsDir, File tmpDir) {
+        if (LogObjectDatabase.isLog(objectsDir)) {
+            return new LogObjectDatabase(objectsDir, tmpDir);
+        }
+        return new LooseObjectDatabase(objectsDir, tmpDir);
+    }
+
+    boolean has(Kind kind, String id);
+
+    /** the content of the object, throws IllegalArgumentException if there is none */
+    byte[] read(Kind kind, String id);
+
+    /** the content of the object, as a stream the caller closes */
+    InputStream stream(Kind kind, String id);
+
+    /** store CONTENTS under ID, unless the object is already there */
+    void write(Kind kind, String id, byte[] contents);
+
+    /** the size of the object in bytes, -1 if there is none */
+    long size(Kind kind, String id);
+
+    /** when the object was written (milliseconds since the epoch), 0 if there is none */
+    long lastModified(Kind kind, String id);
+
+    /** the ids of every object of that kind, sorted */
+    List<String> ids(Kind kind);
+
+    /** remove the object, if it is there (gc) */
+    void delete(Kind kind, String id);
+
+    /** make every write done so far visible to other handles and processes,
+     *  called before any ref is pointed at what was written (see RefStore)
+     */
+    default void flush() {
+    }
+
+    /** merge what reads would otherwise go through more and more of (the segments of a log);
+     *  it removes files other handles may be reading, so it is only called under the exclusive lock
+     */
+    default void maintain() {
+    }
+
+    /** reclaim the space of deleted objects, called by gc after sweeping */
+    default void compact() {
+    }
+}
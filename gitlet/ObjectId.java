@@ -0,0 +1,177 @@
+package gitlet;
+
+/** Represents a SHA-1 object id in its binary form.
+ *  The 20 bytes are kept in three primitive words instead of a byte array or a 40-char String,
+ *  so an id costs one small object, and equals/hashCode/compareTo never allocate.
+ *  Converting from and to hex goes through lookup tables instead of java.util.Formatter.
+ *
+ *  @author x-yy-x
+ */
+final class ObjectId implements Comparable<ObjectId> {
+    /** The length of a SHA-1 id in bytes. */
+    static final int RAW_LENGTH = 20;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** value of an ASCII hex digit, -1 for anything else */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+
+    /** bytes 0-7, 8-15 and 16-19 of the id, big-endian */
+    private final long w1;
+    private final long w2;
+    private final int w3;
+
+    private ObjectId(long w1, long w2, int w3) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /** the id made of RAW_LENGTH bytes of RAW starting at OFFSET */
+    static ObjectId fromRaw(byte[] raw, int offset) {
+        return new ObjectId(readLong(raw, offset), readLong(raw, offset + 8),
+                (int) (readLong(raw, offset + 12) & 0xffffffffL));
+    }
+
+    static ObjectId fromRaw(byte[] raw) {
+        return fromRaw(raw, 0);
+    }
+
+    /** the id written as 40 hex digits in HEX.
+     *  Throws IllegalArgumentException if HEX isn't a full id. */
+    static ObjectId fromHex(CharSequence hex) {
+        if (!isHex(hex)) {
+            throw new IllegalArgumentException("not an object id: " + hex);
+        }
+        return new ObjectId(hexToLong(hex, 0, 16), hexToLong(hex, 16, 16), (int) hexToLong(hex, 32, 8));
+    }
+
+    /** whether HEX is a complete id written as hex digits */
+    static boolean isHex(CharSequence hex) {
+        if (hex.length() != 2 * RAW_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c >= 128 || HEX_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** the 40 lower case hex digits of RAW[OFFSET, OFFSET + 20) */
+    static String toHex(byte[] raw, int offset) {
+        char[] chars = new char[2 * RAW_LENGTH];
+        for (int i = 0; i < RAW_LENGTH; i++) {
+            int b = raw[offset + i] & 0xff;
+            chars[2 * i] = HEX_DIGITS[b >>> 4];
+            chars[2 * i + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    String toHex() {
+        byte[] raw = new byte[RAW_LENGTH];
+        copyRawTo(raw, 0);
+        return toHex(raw, 0);
+    }
+
+    /** write the RAW_LENGTH bytes of this id into DEST at OFFSET */
+    void copyRawTo(byte[] dest, int offset) {
+        writeLong(dest, offset, w1);
+        writeLong(dest, offset + 8, w2);
+        for (int i = 0; i < 4; i++) {
+            dest[offset + 16 + i] = (byte) (w3 >>> (24 - 8 * i));
+        }
+    }
+
+    /** whether HEX is this id written in hex, compared digit by digit without allocating */
+    boolean equalsHex(CharSequence hex) {
+        if (hex == null || hex.length() != 2 * RAW_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < 2 * RAW_LENGTH; i++) {
+            char c = hex.charAt(i);
+            if (c >= 128 || HEX_VALUES[c] != nibble(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /// the i-th hex digit of this id, as a number
+    private int nibble(int i) {
+        if (i < 16) {
+            return (int) (w1 >>> (60 - 4 * i)) & 0xf;
+        } else if (i < 32) {
+            return (int) (w2 >>> (60 - 4 * (i - 16))) & 0xf;
+        }
+        return (w3 >>> (28 - 4 * (i - 32))) & 0xf;
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Long.compareUnsigned(w1, other.w1);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = Long.compareUnsigned(w2, other.w2);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return Integer.compareUnsigned(w3, other.w3);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId otherId = (ObjectId) other;
+        return w1 == otherId.w1 && w2 == otherId.w2 && w3 == otherId.w3;
+    }
+
+    /** SHA-1 output is already uniformly distributed, so its first bytes are a good hash */
+    @Override
+    public int hashCode() {
+        return (int) (w1 >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    private static long readLong(byte[] raw, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (raw[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] dest, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            dest[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long hexToLong(CharSequence hex, int start, int digits) {
+        long value = 0;
+        for (int i = start; i < start + digits; i++) {
+            value = (value << 4) | HEX_VALUES[hex.charAt(i)];
+        }
+        return value;
+    }
+}
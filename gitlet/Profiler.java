@@ -0,0 +1,174 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Per-command performance instrumentation, behind the --profile flag (or the GITLET_PROFILE variable).
+ *  Counters are bumped by the Utils I/O primitives and a few commands,
+ *  phases are timed by wrapping code in try (Profiler.Phase p = Profiler.phase("name")).
+ *  Phases nest, a phase entered several times (e.g. once per copied commit) is reported once
+ *  with its total time and its count.
+ *  When profiling is off, every hook is a single check of a static boolean.
+ *
+ *  @author x-yy-x
+ */
+class Profiler {
+
+    /** what is counted */
+    enum Counter {
+        FILES_READ, BYTES_READ, FILES_WRITTEN, BYTES_WRITTEN, OBJECTS_DESERIALIZED, COMMITS_DESERIALIZED,
+        BYTES_HASHED, DIRECTORY_LISTINGS, CACHE_HITS, BLOOM_SKIPS
+    }
+
+    private static boolean enabled;
+    /** "text" or "json" */
+    private static String format;
+    /** where the report goes, null for stderr */
+    private static String reportFile;
+
+    private static final LongAdder[] COUNTERS = new LongAdder[Counter.values().length];
+    /** phase path ("merge/split point") -> {total nanos, times entered}, in order of first entry */
+    private static final Map<String, long[]> PHASES = new LinkedHashMap<>();
+    /** the phases open in each thread, a phase nests in the one its own thread opened last */
+    private static final ThreadLocal<Deque<String>> OPEN_PHASES = ThreadLocal.withInitial(ArrayDeque::new);
+
+    static {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            COUNTERS[i] = new LongAdder();
+        }
+    }
+
+    private Profiler() {
+    }
+
+    /** turn profiling on. SPEC is "text", "json" or "json:FILE" */
+    static void enable(String spec) {
+        enabled = true;
+        format = "text";
+        if (spec.startsWith("json")) {
+            format = "json";
+            if (spec.startsWith("json:")) {
+                reportFile = spec.substring("json:".length());
+            }
+        }
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void count(Counter counter) {
+        if (enabled) {
+            COUNTERS[counter.ordinal()].increment();
+        }
+    }
+
+    static void count(Counter counter, long amount) {
+        if (enabled) {
+            COUNTERS[counter.ordinal()].add(amount);
+        }
+    }
+
+    /** a timed section of a command, closing it stops the clock */
+    static final class Phase implements AutoCloseable {
+        private final String path;
+        private final long start;
+
+        private Phase(String path) {
+            this.path = path;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (path == null) {
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+            synchronized (PHASES) {
+                long[] total = PHASES.computeIfAbsent(path, p -> new long[2]);
+                total[0] += elapsed;
+                total[1]++;
+            }
+            OPEN_PHASES.get().pop();
+        }
+    }
+
+    private static final Phase NO_PHASE = new Phase(null);
+
+    /** start timing the phase NAME, nested in the phase currently open */
+    static Phase phase(String name) {
+        if (!enabled) {
+            return NO_PHASE;
+        }
+        Deque<String> openPhases = OPEN_PHASES.get();
+        String path = openPhases.isEmpty() ? name : openPhases.peek() + "/" + name;
+        synchronized (PHASES) {
+            // reserve the position, so phases are reported in the order they started
+            PHASES.computeIfAbsent(path, p -> new long[2]);
+        }
+        openPhases.push(path);
+        return new Phase(path);
+    }
+
+    /** print or dump the report, if profiling is on */
+    static void report() {
+        if (!enabled) {
+            return;
+        }
+        String report = format.equals("json") ? toJson() : toText();
+        if (reportFile == null) {
+            System.err.print(report);
+            return;
+        }
+        try {
+            Files.write(Paths.get(reportFile), report.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException excp) {
+            System.err.println("Could not write the profile to " + reportFile + ": " + excp.getMessage());
+        }
+    }
+
+    private static String toText() {
+        StringBuilder text = new StringBuilder("=== Profile ===").append(System.lineSeparator());
+        for (Map.Entry<String, long[]> phase: PHASES.entrySet()) {
+            String path = phase.getKey();
+            int depth = path.length() - path.replace("/", "").length();
+            String name = "  ".repeat(depth) + path.substring(path.lastIndexOf('/') + 1);
+            text.append(String.format("%-40s %10.2f ms  x%d%n", name, phase.getValue()[0] / 1e6, phase.getValue()[1]));
+        }
+        for (Counter counter: Counter.values()) {
+            text.append(String.format("%-40s %10d%n", counter.name().toLowerCase().replace('_', ' '),
+                    COUNTERS[counter.ordinal()].sum()));
+        }
+        return text.toString();
+    }
+
+    private static String toJson() {
+        StringBuilder json = new StringBuilder("{\"phases\": [");
+        String separator = "";
+        for (Map.Entry<String, long[]> phase: PHASES.entrySet()) {
+            json.append(separator).append(String.format("{\"name\": \"%s\", \"nanos\": %d, \"count\": %d}",
+                    escape(phase.getKey()), phase.getValue()[0], phase.getValue()[1]));
+            separator = ", ";
+        }
+        json.append("], \"counters\": {");
+        separator = "";
+        for (Counter counter: Counter.values()) {
+            json.append(separator).append(String.format("\"%s\": %d",
+                    counter.name().toLowerCase(), COUNTERS[counter.ordinal()].sum()));
+            separator = ", ";
+        }
+        return json.append("}}").append(System.lineSeparator()).toString();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
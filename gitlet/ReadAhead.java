@@ -0,0 +1,161 @@
+package gitlet;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/** Reads ahead of a history walk: while the walk is at a commit, its next ancestors are read
+ *  and deserialized on background threads, into the commit cache of the repository, where the walk then finds them
+ *  (or waits for the read already going on, see Repository.readCommit).
+ *  Without it every parent is read only once its child is done with, and a walk over a cold
+ *  page cache or a network file system waits for each read in turn.
+ *
+ *  How far ahead it reads adapts to the reads: enough of them are kept going to cover the time one takes,
+ *  as many as the walk gets through meanwhile (twice that, for slack), between MIN_DEPTH and MAX_DEPTH.
+ *  Reads from the page cache take next to nothing, so they are hardly read ahead at all; the grandparents
+ *  still are, the walk reading the parents itself as soon as it is done with a commit, so reads keep being measured.
+ *
+ *  A failed read is left to the walk, which reads the commit again and reports the failure itself.
+ *  The background threads are never interrupted (that would close the channels of a LogObjectDatabase
+ *  for everyone): close waits for the reads going on, and nothing is started after it.
+ *
+ *  @author x-yy-x
+ */
+class ReadAhead implements AutoCloseable {
+    /** the fewest and most generations read ahead */
+    private static final int MIN_DEPTH = 2;
+    private static final int MAX_DEPTH = 64;
+    /** how many reads go on at once, at most (several only along several lines of history) */
+    private static final int THREADS = 4;
+    /** the weight of the newest measure in the moving averages */
+    private static final double SMOOTHING = 0.2;
+
+    private final Repository repo;
+    private final Set<String> stopAt;
+    /** the command walking, for the events of the background threads */
+    private final String command = GitletEvents.getCommand();
+    /** the generations asked to be read ahead of every commit reached so far, by id */
+    private final Map<String, Integer> asked = new ConcurrentHashMap<>();
+    /** started by the first read ahead: a walk of a few commits starts no thread */
+    private ExecutorService threads;
+    private volatile boolean closed;
+
+    /** average time of a read, in ns (updated by the background threads) */
+    private volatile double readNanos;
+    /** average time the walk takes per commit, in ns (updated by the walk) */
+    private double visitNanos;
+    private long lastVisit;
+
+    /** reading the commits of REPO ahead, not beyond the commits STOPAT, whose parents aren't there
+     *  (the shallow boundary)
+     */
+    ReadAhead(Repository repo, Set<String> stopAt) {
+        this.repo = repo;
+        this.stopAt = stopAt;
+    }
+
+    /** the walk is at COMMIT: read ahead of it */
+    void visit(Commit commit) {
+        long now = System.nanoTime();
+        if (lastVisit != 0) {
+            visitNanos = average(visitNanos, now - lastVisit);
+        }
+        lastVisit = now;
+        askParents(commit, depth());
+    }
+
+    /// how many generations to read ahead, from what reads and the walk have taken so far
+    int depth() {
+        if (readNanos == 0 || visitNanos == 0) {
+            return MIN_DEPTH;
+        }
+        double inFlight = 2 * readNanos / visitNanos;
+        return (int) Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, Math.ceil(inFlight)));
+    }
+
+    private static double average(double average, long sample) {
+        return average == 0 ? sample : (1 - SMOOTHING) * average + SMOOTHING * sample;
+    }
+
+    private void askParents(Commit commit, int depth) {
+        if (depth <= 0 || stopAt.contains(commit.getId())) {
+            return;
+        }
+        for (String parentId: new String[] {commit.getParent1ID(), commit.getParent2ID()}) {
+            if (!parentId.isEmpty()) {
+                ask(parentId, depth);
+            }
+        }
+    }
+
+    /// read the commit and DEPTH - 1 generations above it, unless that much was asked already
+    private void ask(String commitId, int depth) {
+        Integer before = asked.get(commitId);
+        if (closed || (before != null && before >= depth)) {
+            return;
+        }
+        asked.put(commitId, depth);
+        Commit cached = repo.cachedCommit(commitId);
+        if (cached != null) {
+            // no read to wait for: on to the ones above, which may need one
+            askParents(cached, depth - 1);
+            return;
+        }
+        ExecutorService started;
+        synchronized (this) {
+            if (threads == null) {
+                threads = Executors.newFixedThreadPool(THREADS, runnable -> {
+                    Thread thread = new Thread(runnable, "gitlet-read-ahead");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            started = threads;
+        }
+        try {
+            started.execute(() -> read(commitId, depth));
+        } catch (RejectedExecutionException excp) {
+            // closed meanwhile
+        }
+    }
+
+    private void read(String commitId, int depth) {
+        if (closed) {
+            return;
+        }
+        try (GitletEvents.CommandScope events = GitletEvents.command(command)) {
+            Commit commit = repo.cachedCommit(commitId);
+            if (commit == null) {
+                long start = System.nanoTime();
+                commit = repo.readCommit(commitId);
+                readNanos = average(readNanos, System.nanoTime() - start);
+            }
+            askParents(commit, depth - 1);
+        } catch (RuntimeException excp) {
+            // left to the walk
+        }
+    }
+
+    /** stop reading ahead, once the reads going on are over */
+    @Override
+    public void close() {
+        closed = true;
+        ExecutorService started;
+        synchronized (this) {
+            started = threads;
+        }
+        if (started == null) {
+            return;
+        }
+        started.shutdown();
+        try {
+            started.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
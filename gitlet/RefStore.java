@@ -0,0 +1,300 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** The references of a repository: the branch tips and HEAD.
+ *  All branches live in one file, .gitlet/packed-refs, one "<commit id> <name>" line per branch sorted by name,
+ *  so looking a branch up is a binary search over the file contents and listing them is a single read.
+ *  Remote-tracking branches are refs named "remote/branch".
+ *
+ *  A file under .gitlet/branches/ (the layout used before packed-refs) is a loose ref,
+ *  it overrides the packed line of the same name. Loose refs are only read:
+ *  the next transaction folds them into packed-refs and deletes them.
+ *
+ *  Updates go through a Transaction, which writes the whole new packed-refs to a temporary file
+ *  and renames it over the old one, so a reader sees either every update of the transaction or none.
+ *  The objects written so far are flushed (ObjectDatabase.flush) and synced (Durability.sync) before.
+ *  HEAD is the name of the current branch, kept in .gitlet/branch; its commit is the tip of that branch.
+ *  Linked worktrees share the branches (the files above, in the .gitlet of the main worktree)
+ *  but each has its own HEAD, in its own .gitlet/worktrees/[name]/branch.
+ *  Writers are serialized by the RepositoryLock.
+ *
+ *  @author x-yy-x
+ */
+class RefStore {
+    /** first line of packed-refs */
+    private static final String HEADER = "# gitlet packed-refs, sorted";
+    /** a line is the 40 hex digits of the id, a space, then the name */
+    private static final int NAME_OFFSET = 2 * ObjectId.RAW_LENGTH + 1;
+
+    private final File commonDir;
+    private final File gitletDir;
+    private final File packedFile;
+    private final File looseDir;
+    private final File headFile;
+    /** run before any ref is written: makes the objects written so far visible (ObjectDatabase.flush) */
+    private final Runnable beforeUpdate;
+
+    /** the packed-refs file as last read, with what identified that version of the file */
+    private volatile Snapshot packed;
+
+    /// the content of packed-refs, and the attributes telling whether the file was replaced since
+    private static final class Snapshot {
+        private final byte[] data;
+        private final Object version;
+
+        Snapshot(byte[] data, Object version) {
+            this.data = data;
+            this.version = version;
+        }
+    }
+
+    /** the refs of the worktree whose own files are in GITLETDIR, the shared ones in COMMONDIR */
+    RefStore(File commonDir, File gitletDir, Runnable beforeUpdate) {
+        this.beforeUpdate = beforeUpdate;
+        this.commonDir = commonDir;
+        this.gitletDir = gitletDir;
+        this.packedFile = join(commonDir, "packed-refs");
+        this.looseDir = join(commonDir, "branches");
+        this.headFile = join(gitletDir, "branch");
+    }
+
+    /** the commit id the branch NAME points to, or null if there is no such branch */
+    String resolve(String name) {
+        File loose = join(looseDir, name);
+        if (loose.isFile()) {
+            return readContentsAsString(loose);
+        }
+        return lookupPacked(name);
+    }
+
+    boolean exists(String name) {
+        return resolve(name) != null;
+    }
+
+    /** every branch and the commit it points to, sorted by name */
+    TreeMap<String, String> all() {
+        TreeMap<String, String> refs = new TreeMap<>();
+        byte[] data = packed();
+        int start = firstRecord(data);
+        while (start < data.length) {
+            int end = lineEnd(data, start);
+            refs.put(nameAt(data, start, end), idAt(data, start));
+            start = end + 1;
+        }
+        collectLoose(looseDir, "", refs);
+        return refs;
+    }
+
+    /** the name of the current branch */
+    String getHead() {
+        return readContentsAsString(headFile);
+    }
+
+    /** the commit the current branch points to */
+    String resolveHead() {
+        return resolve(getHead());
+    }
+
+    Transaction transaction() {
+        return new Transaction();
+    }
+
+    /** A set of ref updates applied together by commit(). */
+    class Transaction {
+        /** name -> new id, null to delete the branch */
+        private final Map<String, String> updates = new TreeMap<>();
+        private String newHead;
+
+        /** point the branch NAME at commit ID, creating it if needed */
+        Transaction update(String name, String id) {
+            if (!ObjectId.isHex(id)) {
+                throw new IllegalArgumentException("not a commit id: " + id);
+            }
+            updates.put(name, id);
+            return this;
+        }
+
+        Transaction delete(String name) {
+            updates.put(name, null);
+            return this;
+        }
+
+        /** make NAME the current branch */
+        Transaction setHead(String name) {
+            newHead = name;
+            return this;
+        }
+
+        /** write the updates: first all the refs at once, then HEAD */
+        void commit() {
+            if (!updates.isEmpty() || hasLooseRefs()) {
+                TreeMap<String, String> refs = all();
+                for (Map.Entry<String, String> update: updates.entrySet()) {
+                    if (update.getValue() == null) {
+                        refs.remove(update.getKey());
+                    } else {
+                        refs.put(update.getKey(), update.getValue());
+                    }
+                }
+                byte[] data = format(refs);
+                replace(packedFile, data);
+                packed = new Snapshot(data, version());
+                // every loose ref is in packed-refs now, with its value or the one of this transaction
+                deleteLoose(looseDir);
+            }
+            if (newHead != null && !(headFile.isFile() && newHead.equals(getHead()))) {
+                replace(headFile, newHead.getBytes(StandardCharsets.UTF_8));
+            }
+            // HEAD used to be duplicated in .gitlet/head, which nothing reads any more
+            File oldHeadFile = join(gitletDir, "head");
+            if (oldHeadFile.isFile()) {
+                oldHeadFile.delete();
+            }
+        }
+    }
+
+    /// write DATA to a temporary file, then rename it over TARGET
+    private void replace(File target, byte[] data) {
+        // the objects the refs are about to point to reach the disk first
+        beforeUpdate.run();
+        Durability.sync();
+        writeContentsAtomically(target, join(commonDir, "tmp"), (Object) data);
+        Durability.sync();
+    }
+
+    private static byte[] format(TreeMap<String, String> refs) {
+        StringBuilder text = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, String> ref: refs.entrySet()) {
+            text.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** the content of packed-refs, read again only if another handle or process replaced the file.
+     *  A replaced file is a new one (see replace), so its file key (the inode) tells, where there is one.
+     */
+    private byte[] packed() {
+        Object version = version();
+        Snapshot snapshot = packed;
+        if (snapshot == null || !snapshot.version.equals(version)) {
+            snapshot = new Snapshot(packedFile.isFile() ? readContents(packedFile) : new byte[0], version);
+            packed = snapshot;
+        }
+        return snapshot.data;
+    }
+
+    private Object version() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(packedFile.toPath(), BasicFileAttributes.class);
+            return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+        } catch (IOException excp) {
+            return Collections.emptyList(); // no packed-refs (yet)
+        }
+    }
+
+    /** binary search of NAME among the lines of packed-refs, without parsing the whole file */
+    private String lookupPacked(String name) {
+        byte[] data = packed();
+        int low = firstRecord(data);
+        int high = data.length;
+        while (low < high) {
+            int start = lineStart(data, low + (high - low) / 2, low);
+            int end = lineEnd(data, start);
+            int cmp = nameAt(data, start, end).compareTo(name);
+            if (cmp == 0) {
+                return idAt(data, start);
+            } else if (cmp < 0) {
+                low = end + 1;
+            } else {
+                high = start;
+            }
+        }
+        return null;
+    }
+
+    /// the offset of the first ref line, after the header
+    private static int firstRecord(byte[] data) {
+        if (data.length > 0 && data[0] == '#') {
+            return Math.min(lineEnd(data, 0) + 1, data.length);
+        }
+        return 0;
+    }
+
+    /// the start of the line containing POS, not looking before LOW (itself a line start)
+    private static int lineStart(byte[] data, int pos, int low) {
+        while (pos > low && data[pos - 1] != '\n') {
+            pos--;
+        }
+        return pos;
+    }
+
+    /// the offset of the newline ending the line starting at START
+    private static int lineEnd(byte[] data, int start) {
+        int end = start;
+        while (end < data.length && data[end] != '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    private static String nameAt(byte[] data, int start, int end) {
+        return new String(data, start + NAME_OFFSET, end - start - NAME_OFFSET, StandardCharsets.UTF_8);
+    }
+
+    private static String idAt(byte[] data, int start) {
+        return new String(data, start, NAME_OFFSET - 1, StandardCharsets.US_ASCII);
+    }
+
+    private boolean hasLooseRefs() {
+        String[] names = looseDir.list();
+        return names != null && names.length > 0;
+    }
+
+    /// add the loose refs under DIR to REFS, their names starting with PREFIX
+    private static void collectLoose(File dir, String prefix, Map<String, String> refs) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file: files) {
+            if (file.isDirectory()) {
+                collectLoose(file, prefix + file.getName() + "/", refs);
+            } else if (!file.getName().endsWith(".tmp")) {
+                refs.put(prefix + file.getName(), readContentsAsString(file));
+            }
+        }
+    }
+
+    /// delete the loose refs under DIR and the directories they leave empty, keeping DIR itself
+    private static void deleteLoose(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> subDirs = new ArrayList<>();
+        for (File file: files) {
+            if (file.isDirectory()) {
+                subDirs.add(file);
+            } else {
+                file.delete();
+            }
+        }
+        for (File subDir: subDirs) {
+            deleteLoose(subDir);
+            subDir.delete();
+        }
+    }
+}
@@ -1,7 +1,17 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static gitlet.Utils.*;
 
@@ -20,56 +30,153 @@ public class Repository {
                 - ...files of commits (class serialization) sha1:serializedCommit
             - blobs/
                 - ...files of blob (file content) sha1:fileContent
-        - branches/
-            - master
-            - other branches branchName:commitID(sha1)
-        - head (latest version) commitID
-        - branch (latest branch) name
+            - graph/
+                - ...commit graph entries (parents + changed-path Bloom filter) sha1:serializedEntry
+        - packed-refs (every branch, sorted) lines of commitID branchName
+        - branches/ (loose refs of older repositories, folded into packed-refs by the next update)
+        - branch (HEAD: the current branch) name
         - stages/
-            - addStage/ (Blobs) name:content
+            - added/ (files staged for addition, their blobs already in objects/) name:blobID
+            - addStage/ (only if staged by an older gitlet) name:content
             - removeStage/ name:name(just for convenience because we don't care what has been removed)
         - remotes/
             - remote-name name:location
+        - shallow (only after fetch --depth) commitIDs whose parents were not fetched, one per line
+        - worktrees/ (the other working directories sharing this repository, see worktreeAdd)
+            - name/
+                - branch (HEAD of that worktree) name
+                - stages/
+                - commondir path of this .gitlet
+                - gitdir path of the .gitlet file of that worktree
+        - promisor (only after fetch --filter=blob:none) names of the remotes missing blobs are fetched from, one per line
+        - sparse-checkout (only in sparse worktrees, per worktree) the patterns of the paths checked out, see SparseCheckout
 
      */
-    /** The current working directory. */
-    private static  File CWD = new File(System.getProperty("user.dir"));
-    /** The .gitlet directory. */
-    public static  File GITLET_DIR = join(CWD, ".gitlet");
+    /** The working directory. */
+    private final File cwd;
+    /** The .gitlet directory (of this worktree, named by the .gitlet file of a linked worktree). */
+    private final File gitletDir;
+    /** The .gitlet directory shared by all the worktrees, the one of the main worktree. */
+    private final File commonDir;
     /** The objects directory **/
-    private static  File OBJECTS_DIR = join(GITLET_DIR, "objects");
-    /** The commits directory， containing serialized Commit objects. */
-    public static  File COMMITS_DIR = join(OBJECTS_DIR, "commits");
-    /** The blobs directory, containing Blob (file content) objects. */
-    private static  File BLOBS_DIR = join(OBJECTS_DIR, "blobs");
-    /** The branches directory, containing branch name files, which hold HEAD Commit IDs */
-    private static  File BRANCHES_DIR = join(GITLET_DIR, "branches");
+    private final File objectsDir;
     /** The stages directory */
-    private static  File STAGES_DIR = join(GITLET_DIR, "stages");
-    /** The addStage directory */
-    private static  File ADDSTAGE_DIR = join(STAGES_DIR, "addStage");
+    private final File stagesDir;
+    /** The directory of the files staged for addition, each naming its blob */
+    private final File addStageDir;
+    /** where older gitlets staged a copy of the content instead, still read */
+    private final File legacyAddStageDir;
     /** The removeStage directory */
-    private static  File REMOVESTAGE_DIR = join(STAGES_DIR, "removeStage");
+    private final File removeStageDir;
     /** The remotes directory */
-    private static  File REMOTES_DIR = join(GITLET_DIR, "remotes");
+    private final File remotesDir;
+    /** The tmp directory, where objects are written before being renamed into place */
+    private final File tmpDir;
+    /** The shallow file, listing the commits whose parents were not fetched */
+    private final File shallowFile;
+    /** The promisor file, naming the remotes which have the blobs blob-less fetches left out */
+    private final File promisorFile;
+    /** The worktrees directory, with the own files of every linked worktree */
+    private final File worktreesDir;
+    /** The patterns of the paths this worktree checks out, if it doesn't check out everything */
+    private final File sparseFile;
+
+    /** what changed in the working directory, if an fsmonitor runs there */
+    private final FsMonitor fsmonitor;
+
+    /** the commits, graph entries and blobs; replaced by init if it makes a log repository */
+    private volatile ObjectDatabase objects;
+    /** the branches and HEAD */
+    private final RefStore refs;
+    /** where the messages of the commands go */
+    private final PrintStream out;
+    /** the commits read so far by id, a commit never changes so none of them goes stale */
+    private final Map<String, Commit> commitCache = new ConcurrentHashMap<>();
+    /** how many commits commitCache holds at most before it starts over */
+    private static final int COMMIT_CACHE_SIZE = 4096;
+    /** the commits being read by some thread, which the other threads wanting them wait for */
+    private final Map<String, CompletableFuture<Commit>> commitsBeingRead = new ConcurrentHashMap<>();
+
+    /** the repository of the directory the JVM was started in, as the command line uses it */
+    Repository() {
+        this(new File(System.getProperty("user.dir")));
+    }
+
+    /** the repository whose working directory is cwd (it may not be initialized yet),
+     *  printing the messages of the commands to System.out
+     */
+    public Repository(File cwd) {
+        this(cwd, System.out);
+    }
 
-    private  File headFIle = join(GITLET_DIR, "head");
-    private  File currentBranchFile = join(GITLET_DIR, "branch");
+    /** a handle on the repository whose working directory is cwd, printing the messages of the commands to out.
+     *  A handle only holds the paths and caches of its repository, nothing is shared between handles:
+     *  several of them (on the same repository or not) can be used at once, from any number of threads.
+     *  Every command locks the repository (see RepositoryLock), shared if it only reads it, exclusive if not.
+     */
+    public Repository(File cwd, PrintStream out) {
+        this.cwd = cwd.getAbsoluteFile();
+        this.out = out;
+        gitletDir = gitletDirOf(this.cwd);
+        commonDir = commonDirOf(gitletDir);
+        objectsDir = join(commonDir, "objects");
+        stagesDir = join(gitletDir, "stages");
+        addStageDir = join(stagesDir, "added");
+        legacyAddStageDir = join(stagesDir, "addStage");
+        removeStageDir = join(stagesDir, "removeStage");
+        remotesDir = join(commonDir, "remotes");
+        tmpDir = join(commonDir, "tmp");
+        shallowFile = join(commonDir, "shallow");
+        promisorFile = join(commonDir, "promisor");
+        worktreesDir = join(commonDir, "worktrees");
+        sparseFile = join(gitletDir, "sparse-checkout");
+        fsmonitor = new FsMonitor(this.cwd, join(gitletDir, "fsmonitor"), tmpDir);
+        objects = ObjectDatabase.open(objectsDir, tmpDir);
+        // the objects the refs are about to point to are made visible first
+        refs = new RefStore(commonDir, gitletDir, this::flushObjects);
+    }
 
-    Repository() {
+    /** a handle whose objects are in OBJECTS instead of the objects directory (e.g. a MemoryObjectDatabase) */
+    Repository(File cwd, PrintStream out, ObjectDatabase objects) {
+        this(cwd, out);
+        this.objects = objects;
+    }
+
+    /// the .gitlet directory of the worktree in cwd: .gitlet itself, or the directory a linked worktree's file names
+    private static File gitletDirOf(File cwd) {
+        File dotGitlet = join(cwd, ".gitlet");
+        if (dotGitlet.isFile()) {
+            String link = readContentsAsString(dotGitlet).trim();
+            if (link.startsWith("gitdir: ")) {
+                return new File(link.substring("gitdir: ".length()));
+            }
+        }
+        return dotGitlet;
+    }
+
+    /// the .gitlet directory shared with the other worktrees
+    private static File commonDirOf(File gitletDir) {
+        File commonDirFile = join(gitletDir, "commondir");
+        if (commonDirFile.isFile()) {
+            return new File(readContentsAsString(commonDirFile).trim());
+        }
+        return gitletDir;
     }
 
     /* create the whole directory */
     private void createInitialDirectory() {
-        GITLET_DIR.mkdir();
-        OBJECTS_DIR.mkdir();
-        COMMITS_DIR.mkdir();
-        BLOBS_DIR.mkdir();
-        BRANCHES_DIR.mkdir();
-        STAGES_DIR.mkdir();
-        ADDSTAGE_DIR.mkdir();
-        REMOVESTAGE_DIR.mkdir();
-        REMOTES_DIR.mkdir();
+        gitletDir.mkdir();
+        objectsDir.mkdir();
+        if (!LogObjectDatabase.isLog(objectsDir)) {
+            for (ObjectDatabase.Kind kind: ObjectDatabase.Kind.values()) {
+                join(objectsDir, kind.dirName()).mkdir();
+            }
+        }
+        stagesDir.mkdir();
+        addStageDir.mkdir();
+        removeStageDir.mkdir();
+        remotesDir.mkdir();
+        tmpDir.mkdir();
     }
 
     /**
@@ -79,101 +186,301 @@ public class Repository {
      * it will have a single branch: master
      */
     public void init() {
-        if (GITLET_DIR.exists()) {
-            System.out.println("A Gitlet version-control system already exists in the current directory.");
+        init("loose");
+    }
+
+    /**
+     * init command, keeping the objects in OBJECTSTORE: "loose" (a file per object) or "log" (append-only segments)
+     */
+    public void init(String objectStore) {
+        if (!objectStore.equals("loose") && !objectStore.equals("log")) {
+            out.println("Unknown object store " + objectStore + ".");
+            return;
+        }
+        if (gitletDir.exists()) {
+            out.println("A Gitlet version-control system already exists in the current directory.");
             return;
         }
 
+        if (objectStore.equals("log")) {
+            gitletDir.mkdir();
+            LogObjectDatabase.create(objectsDir);
+            objects = ObjectDatabase.open(objectsDir, tmpDir);
+        }
         createInitialDirectory();
 
-        // get time
-        long epochTimeMillis = 0L;
-        Date initialDate = new Date(epochTimeMillis);
+        Commit initialCommit = initialCommit();
+        String commitID = initialCommit.getId();
 
-        Commit initialCommit = new Commit("initial commit", initialDate, new TreeMap<String, String>(), null, null);
-        String commitID = sha1OfObject(initialCommit);
-
-        // set branch and head
+        // the commit first: refs are only pointed at objects already stored
+        saveCommit(initialCommit, commitID, null);
         setHeadAndBranch(commitID, "master");
-        saveCommit(initialCommit, commitID);
     }
 
 
     /**
-     * save the commit
+     * save the commit, together with its entry in the commit graph
      * @param commit: the commit to be saved
      * @param commitId: the sha1 of commit
+     * @param parent1: the first parent of commit, null for the initial commit
+     */
+    private void saveCommit(Commit commit, String commitId, Commit parent1) {
+        objects.write(ObjectDatabase.Kind.COMMIT, commitId, serialize(commit));
+        saveGraphEntry(commitId, CommitGraphEntry.of(commit, parent1));
+    }
+
+
+    /// write the commit graph entry of the commit with the given id
+    private void saveGraphEntry(String commitId, CommitGraphEntry entry) {
+        objects.write(ObjectDatabase.Kind.GRAPH, commitId, serialize(entry));
+    }
+
+
+    /** get the commit graph entry of the commit with the given id
+     *  commits written before the commit graph existed get their entry computed and saved here
      */
-    private void saveCommit(Commit commit, String commitId) {
-        File commitFile = join(COMMITS_DIR, commitId);
-        writeObject(commitFile, commit);
+    private CommitGraphEntry getGraphEntry(String commitId) {
+        if (objects.has(ObjectDatabase.Kind.GRAPH, commitId)) {
+            return deserialize(objects.read(ObjectDatabase.Kind.GRAPH, commitId), CommitGraphEntry.class);
+        }
+        CommitGraphEntry entry = readOrComputeGraphEntry(commitId);
+        saveGraphEntry(commitId, entry);
+        return entry;
+    }
+
+
+    /// like getGraphEntry, but never writes anything (used when reading from a remote)
+    private CommitGraphEntry readOrComputeGraphEntry(String commitId) {
+        if (objects.has(ObjectDatabase.Kind.GRAPH, commitId)) {
+            return deserialize(objects.read(ObjectDatabase.Kind.GRAPH, commitId), CommitGraphEntry.class);
+        }
+        Commit commit = readCommit(commitId);
+        return CommitGraphEntry.of(commit, commit.getParent1(this));
     }
 
 
     /** point the head to the commit given as well as current branch */
     private void setHeadAndBranch(String commitID, String branchName) {
-        // set the current branch
-        writeContents(currentBranchFile, branchName);
+        // the branch is moved first, then HEAD is switched to it
+        refs.transaction().update(branchName, commitID).setHead(branchName).commit();
+    }
+
+
+    /** lock the repository for a command, shared unless exclusive
+     *  returns null when there is no repository to lock (yet)
+     *  the lock is reentrant: a command may run other commands (merge commits, pull merges)
+     */
+    private RepositoryLock lock(boolean exclusive) {
+        if (!gitletDir.isDirectory()) {
+            return null;
+        }
+        // the worktrees share refs and objects, so they share the lock too
+        return RepositoryLock.acquire(commonDir, exclusive);
+    }
 
-        // write in or overwrite the content of current branch (in the branches directory)
-        File currentBranchContent = join(BRANCHES_DIR, branchName);
-        writeContents(currentBranchContent, commitID);
 
-        // set head
-        writeContents(headFIle, commitID);
+    /// make the objects written so far visible, and tidy the store if no other command can be reading it
+    private void flushObjects() {
+        objects.flush();
+        if (RepositoryLock.isHeldExclusively(commonDir)) {
+            objects.maintain();
+        }
     }
 
 
     /// check if there is an initialized gitlet working directory
     private boolean checkIsInitialized() {
-        if (GITLET_DIR.exists()) {
+        if (gitletDir.exists()) {
             return true;
         }
-        System.out.println("Not in an initialized Gitlet directory.");
+        out.println("Not in an initialized Gitlet directory.");
         return false;
     }
 
+    /// the plain files of the working directory, without the .gitlet file of a linked worktree
+    private List<String> workingFilenames() {
+        return workingFilenames(fsmonitor.workingFiles());
+    }
+
+    /// the same, as MONITORED (what the fsmonitor answered) says, or listing them if it's null
+    private List<String> workingFilenames(Map<String, String> monitored) {
+        if (monitored != null) {
+            return new ArrayList<>(monitored.keySet());
+        }
+        List<String> fileNames = plainFilenamesIn(cwd);
+        if (!fileNames.contains(".gitlet")) {
+            return fileNames;
+        }
+        List<String> workingFileNames = new ArrayList<>(fileNames);
+        workingFileNames.remove(".gitlet");
+        return workingFileNames;
+    }
+
+    /// whether NAME is a working file, as MONITORED (what the fsmonitor answered) says, or as it is if it's null
+    private boolean isWorkingFile(Map<String, String> monitored, String name) {
+        return monitored != null ? monitored.containsKey(name) : join(cwd, name).exists();
+    }
+
+    /// whether the working file NAME has the content of blob ID, as MONITORED says, or hashing it if it's null
+    private boolean workingFileHas(Map<String, String> monitored, String name, String id) {
+        if (monitored != null) {
+            return monitored.get(name).equalsIgnoreCase(id);
+        }
+        return sha1IdOfFile(join(cwd, name)).equalsHex(id);
+    }
+
     /** add command
      * Adds a copy of the file as it currently exists to the staging area
      * overwrites the previous entry in the staging area with the new contents
      * @param fileName: the modified CWD file to be added in the staging area
      */
     public void add(String fileName) {
-        if (!checkIsInitialized()) {
-            return;
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+
+            File userFile = join(cwd, fileName);
+            if (!userFile.exists()) {
+                out.println("File does not exist.");
+                return;
+            }
+
+            Commit latestCommit = getLatestCommit();
+
+            // the file is read and hashed once, commit does no content I/O
+            byte[] contents = readContents(userFile);
+            String blobId = sha1((Object) contents);
+
+            // if it is in removeStage
+            File sameFileInRemoveStage = join(removeStageDir, fileName);
+            if (sameFileInRemoveStage.exists()) {
+                restrictedDelete(sameFileInRemoveStage);
+            }
+
+            // if it is identical to previous version
+            if (blobId.equals(latestCommit.getMapFromFilenameToId().get(fileName))) {
+                unstageAddition(fileName);
+                return;
+            }
+
+            // write or overwrite; the blob is stored for good before the stage names it,
+            // a later commit points refs at it without writing it again
+            objects.write(ObjectDatabase.Kind.BLOB, blobId, contents);
+            flushObjects();
+            Durability.sync();
+            stageForAddition(fileName, blobId);
         }
+    }
 
-        File fileToBeStaged = join(ADDSTAGE_DIR, fileName);
-        File userFile = join(CWD, fileName);
-        if (!userFile.exists()) {
-            System.out.println("File does not exist.");
-            return;
+    /// stage the file for addition as the blob BLOBID, which is already stored
+    private void stageForAddition(String fileName, String blobId) {
+        unstageAddition(fileName);
+        restrictedDelete(join(removeStageDir, fileName));
+        addStageDir.mkdirs();
+        writeContents(join(addStageDir, fileName), blobId);
+    }
+
+    /** the files staged for addition in the worktree whose stages directory is STAGESDIR, name -> blob id */
+    private static TreeMap<String, String> readAddStage(File stagesDir) {
+        TreeMap<String, String> staged = new TreeMap<>();
+        File legacyDir = join(stagesDir, "addStage");
+        List<String> legacyNames = plainFilenamesIn(legacyDir);
+        if (legacyNames != null) {
+            for (String name: legacyNames) {
+                staged.put(name, sha1OfFile(join(legacyDir, name)));
+            }
+        }
+        File dir = join(stagesDir, "added");
+        List<String> names = plainFilenamesIn(dir);
+        if (names != null) {
+            for (String name: names) {
+                staged.put(name, readContentsAsString(join(dir, name)).trim());
+            }
         }
+        return staged;
+    }
 
-        Commit latestCommit = getLatestCommit();
+    /// the files staged for addition in this worktree, name -> blob id
+    private TreeMap<String, String> stagedForAddition() {
+        return readAddStage(stagesDir);
+    }
 
-        String sha1ofUserFile = sha1OfFile(userFile);
+    /// the file is no longer staged for addition (its blob stays, for gc)
+    private void unstageAddition(String fileName) {
+        restrictedDelete(join(addStageDir, fileName));
+        restrictedDelete(join(legacyAddStageDir, fileName));
+    }
 
-        // if it is in removeStage
-        File sameFileInRemoveStage = join(REMOVESTAGE_DIR, fileName);
-        if (sameFileInRemoveStage.exists()) {
-            restrictedDelete(sameFileInRemoveStage);
+    /// nothing is staged anymore
+    private void clearStage() {
+        for (File dir: new File[] {addStageDir, legacyAddStageDir, removeStageDir}) {
+            if (dir.isDirectory()) {
+                clearDir(dir);
+            }
         }
+    }
 
-        // if it is identical to previous version
-        if (Objects.equals(latestCommit.getMapFromFilenameToId().get(fileName), sha1ofUserFile)) {
-            restrictedDelete(fileToBeStaged);
-            return;
+    private Commit getLatestCommit() {
+        return readCommit(refs.resolveHead());
+    }
+
+
+    /** the commit with the given (full) id
+     *  commits are kept once read: merge, push and log read the same ones over and over
+     *  a commit another thread is reading (e.g. a ReadAhead) is waited for rather than read twice
+     */
+    Commit readCommit(String commitId) {
+        Commit commit = commitCache.get(commitId);
+        if (commit != null) {
+            Profiler.count(Profiler.Counter.CACHE_HITS);
+            return commit;
+        }
+        CompletableFuture<Commit> reading = new CompletableFuture<>();
+        CompletableFuture<Commit> other = commitsBeingRead.putIfAbsent(commitId, reading);
+        if (other != null) {
+            try {
+                return other.join();
+            } catch (CompletionException excp) {
+                // it failed there: fail here too, with the error of this read
+                return deserialize(objects.read(ObjectDatabase.Kind.COMMIT, commitId), Commit.class);
+            }
         }
+        try {
+            commit = deserialize(objects.read(ObjectDatabase.Kind.COMMIT, commitId), Commit.class);
+            if (commitCache.size() >= COMMIT_CACHE_SIZE) {
+                commitCache.clear();
+            }
+            commitCache.put(commitId, commit);
+            reading.complete(commit);
+            return commit;
+        } catch (RuntimeException | Error excp) {
+            reading.completeExceptionally(excp);
+            throw excp;
+        } finally {
+            commitsBeingRead.remove(commitId);
+        }
+    }
+
 
-        // write or overwrite
-        writeContentsInFile(fileToBeStaged, userFile);
+    /// the commit with the given id if it was read already, null if not
+    Commit cachedCommit(String commitId) {
+        return commitCache.get(commitId);
     }
 
-    private Commit getLatestCommit() {
-        String latestCommitId = readContentsAsString(headFIle);
-        File commitNeededFile = join(COMMITS_DIR, latestCommitId);
-        return readObject(commitNeededFile, Commit.class);
+
+    /** a read-ahead of the commits of a history walk (see ReadAhead), not going past the shallow commits */
+    ReadAhead readAhead(Set<String> shallowCommits) {
+        return new ReadAhead(this, shallowCommits);
+    }
+
+
+    /// delete a file of this repository or of its working directory, refusing to if the repository is gone
+    private void restrictedDelete(File file) {
+        if (!gitletDir.isDirectory()) {
+            throw new IllegalArgumentException("not .gitlet working directory");
+        }
+        Utils.restrictedDelete(file);
     }
 
 
@@ -184,51 +491,62 @@ public class Repository {
      * @param parent2: the commit(of the other branch) to be merged from. If isn't a merge commit, just pass in null.
      */
     public void commit(String message, Commit parent2) {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        // get time
-        Date currentDate = new Date();
+            // get time
+            Date currentDate = new Date();
 
-        // get latest commit
-        Commit latestCommit = getLatestCommit();
+            // get latest commit
+            Commit latestCommit = getLatestCommit();
 
-        // track the file
-        TreeMap<String, String> nameToBlobId = new TreeMap<>(latestCommit.getMapFromFilenameToId());
+            // track the file
+            TreeMap<String, String> nameToBlobId = new TreeMap<>(latestCommit.getMapFromFilenameToId());
 
-        List<String> filesInAddStage = plainFilenamesIn(ADDSTAGE_DIR);
-        List<String> filesInRemoveStage = plainFilenamesIn(REMOVESTAGE_DIR);
+            TreeMap<String, String> filesInAddStage = stagedForAddition();
+            List<String> filesInRemoveStage = plainFilenamesIn(removeStageDir);
 
-        if (filesInAddStage.isEmpty() && filesInRemoveStage.isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            return;
-        }
+            if (filesInAddStage.isEmpty() && filesInRemoveStage.isEmpty()) {
+                out.println("No changes added to the commit.");
+                return;
+            }
 
-        /// handle addStage
-        for (String addFileName: filesInAddStage) {
-            File sourceFile = join(ADDSTAGE_DIR, addFileName);
-            String sha1ofThisBlob = sha1OfFile(sourceFile);
-            File destinationFile = join(BLOBS_DIR, sha1ofThisBlob);
-            writeContentsInFile(destinationFile, sourceFile);
-            restrictedDelete(sourceFile);
-            nameToBlobId.put(addFileName, sha1ofThisBlob);
-        }
+            /// handle addStage: add already stored the blobs, only older stages hold the content
+            List<String> legacyFiles = plainFilenamesIn(legacyAddStageDir);
+            if (legacyFiles != null && !legacyFiles.isEmpty()) {
+                try (Profiler.Phase phase = Profiler.phase("write blobs")) {
+                    for (String addFileName: legacyFiles) {
+                        File sourceFile = join(legacyAddStageDir, addFileName);
+                        objects.write(ObjectDatabase.Kind.BLOB, filesInAddStage.get(addFileName),
+                                readContents(sourceFile));
+                        restrictedDelete(sourceFile);
+                    }
+                }
+            }
+            for (Map.Entry<String, String> staged: filesInAddStage.entrySet()) {
+                restrictedDelete(join(addStageDir, staged.getKey()));
+                nameToBlobId.put(staged.getKey(), staged.getValue());
+            }
 
-        // handle RemoveStage
-        for (String removeFileName: filesInRemoveStage) {
-            File sourceFile = join(REMOVESTAGE_DIR, removeFileName);
-            restrictedDelete(sourceFile);
-            nameToBlobId.remove(removeFileName);
-        }
+            // handle RemoveStage
+            for (String removeFileName: filesInRemoveStage) {
+                File sourceFile = join(removeStageDir, removeFileName);
+                restrictedDelete(sourceFile);
+                nameToBlobId.remove(removeFileName);
+            }
 
-        // then commit
-        Commit newCommit = new Commit(message, currentDate, nameToBlobId, latestCommit, parent2);
-        String commitID = sha1OfObject(newCommit);
+            // then commit
+            try (Profiler.Phase phase = Profiler.phase("write commit")) {
+                Commit newCommit = new Commit(message, currentDate, nameToBlobId, latestCommit, parent2);
+                String commitID = newCommit.getId();
 
-        // set branch and head
-        setHeadAndBranch(commitID, readContentsAsString(currentBranchFile));
-        saveCommit(newCommit, commitID);
+                // the commit first: refs are only pointed at objects already stored
+                saveCommit(newCommit, commitID, latestCommit);
+                setHeadAndBranch(commitID, getCurrentBranchName());
+            }
+        }
     }
 
 
@@ -238,29 +556,30 @@ public class Repository {
      * @param fileToBeRemoved:file to be removed
      */
     public void rm(String fileToBeRemoved) {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        //if it is currently staged for addition
-        File imaginedAddStageFile = join(ADDSTAGE_DIR, fileToBeRemoved);
-        Commit latestCommit = getLatestCommit();
-        boolean hasWork = false;
-        if (imaginedAddStageFile.exists()) {
-            hasWork = true;
-            restrictedDelete(imaginedAddStageFile);
-        }
+            //if it is currently staged for addition
+            Commit latestCommit = getLatestCommit();
+            boolean hasWork = false;
+            if (stagedForAddition().containsKey(fileToBeRemoved)) {
+                hasWork = true;
+                unstageAddition(fileToBeRemoved);
+            }
 
-        if (latestCommit.getMapFromFilenameToId().containsKey(fileToBeRemoved)) {
-            hasWork = true;
-            // latestCommit.findBlobId.remove(fileToBeRemoved);
-            restrictedDelete(join(CWD, fileToBeRemoved));
-            File fileInRemoveStage = join(REMOVESTAGE_DIR, fileToBeRemoved);
-            writeContents(fileInRemoveStage, fileToBeRemoved);
-        }
+            if (latestCommit.getMapFromFilenameToId().containsKey(fileToBeRemoved)) {
+                hasWork = true;
+                // latestCommit.findBlobId.remove(fileToBeRemoved);
+                restrictedDelete(join(cwd, fileToBeRemoved));
+                File fileInRemoveStage = join(removeStageDir, fileToBeRemoved);
+                writeContents(fileInRemoveStage, fileToBeRemoved);
+            }
 
-        if (!hasWork) {
-            System.out.println("No reason to remove the file.");
+            if (!hasWork) {
+                out.println("No reason to remove the file.");
+            }
         }
     }
 
@@ -271,21 +590,66 @@ public class Repository {
      * ignoring any second parents found in merge commits
      */
     public void log() {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        Commit currentCommit = getLatestCommit();
+            Set<String> shallowCommits = readShallow();
+            String currentId = refs.resolveHead();
+            Commit currentCommit = getLatestCommit();
 
-        while (currentCommit != null) {
-            System.out.println(currentCommit.toString());
+            try (ReadAhead readAhead = readAhead(shallowCommits)) {
+                while (currentCommit != null) {
+                    readAhead.visit(currentCommit);
+                    out.println(currentCommit.toString());
 
-            String parentID = currentCommit.getParent1ID();
+                    String parentID = currentCommit.getParent1ID();
 
-            if (Objects.equals(parentID, "")) {
-                currentCommit = null; // initial commit
-            } else {
-                currentCommit = currentCommit.getParent1();
+                    if (Objects.equals(parentID, "") || shallowCommits.contains(currentId)) {
+                        currentCommit = null; // initial commit, or the history beyond was not fetched
+                    } else {
+                        currentCommit = currentCommit.getParent1(this);
+                        currentId = parentID;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /** log -- [file name] command
+     * like log, but only displays the commits that changed the given file (compared with their first parent)
+     * the changed-path Bloom filters in the commit graph let most commits be skipped
+     * without deserializing them
+     * @param path: the file whose history is wanted
+     */
+    public void log(String path) {
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+
+            Set<String> shallowCommits = readShallow();
+            String currentId = refs.resolveHead();
+            while (!currentId.isEmpty()) {
+                boolean isShallow = shallowCommits.contains(currentId);
+                CommitGraphEntry entry = getGraphEntry(currentId);
+                if (!entry.mightHaveChanged(path)) {
+                    // the commit was skipped without being deserialized
+                    Profiler.count(Profiler.Counter.BLOOM_SKIPS);
+                } else {
+                    // the filter can be wrong in this direction, so check the file maps themselves
+                    Commit current = readCommit(currentId);
+                    // beyond a shallow boundary, the commit is compared with an empty history
+                    Commit parent = isShallow ? null : current.getParent1(this);
+                    String blobId = current.getMapFromFilenameToId().get(path);
+                    String parentBlobId = parent == null ? null : parent.getMapFromFilenameToId().get(path);
+                    if (!Objects.equals(blobId, parentBlobId)) {
+                        out.println(current.toString());
+                    }
+                }
+                currentId = isShallow ? "" : entry.getParent1ID();
             }
         }
     }
@@ -295,15 +659,16 @@ public class Repository {
      * displays information about all commits ever made.
      */
     public void globalLog() {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        List<String> sha1OfAllCommits = plainFilenamesIn(COMMITS_DIR);
+            List<String> sha1OfAllCommits = objects.ids(ObjectDatabase.Kind.COMMIT);
 
-        for (String fileName: sha1OfAllCommits) {
-            File commitContentFile = join(COMMITS_DIR, fileName);
-            System.out.println(readObject(commitContentFile, Commit.class).toString());
+            for (String fileName: sha1OfAllCommits) {
+                out.println(deserialize(objects.read(ObjectDatabase.Kind.COMMIT, fileName), Commit.class).toString());
+            }
         }
     }
 
@@ -313,24 +678,25 @@ public class Repository {
      * @param message: the message the commit is expected to have
      */
     public void find(String message) {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        List<String> sha1OfAllCommits = plainFilenamesIn(COMMITS_DIR);
-        boolean find = false;
+            List<String> sha1OfAllCommits = objects.ids(ObjectDatabase.Kind.COMMIT);
+            boolean find = false;
 
-        for (String fileName: sha1OfAllCommits) {
-            File commitContentFile = join(COMMITS_DIR, fileName);
-            Commit current = readObject(commitContentFile, Commit.class);
-            if (Objects.equals(current.getMessage(), message)) {
-                System.out.println(sha1OfObject(current));
-                find = true;
+            for (String fileName: sha1OfAllCommits) {
+                Commit current = deserialize(objects.read(ObjectDatabase.Kind.COMMIT, fileName), Commit.class);
+                if (Objects.equals(current.getMessage(), message)) {
+                    out.println(current.getId());
+                    find = true;
+                }
             }
-        }
 
-        if (!find) {
-            System.out.println("Found no commit with that message.");
+            if (!find) {
+                out.println("Found no commit with that message.");
+            }
         }
     }
 
@@ -341,114 +707,126 @@ public class Repository {
      * as well as modifications not staged and untracked files
      */
     public void status() {
-        if (!checkIsInitialized()) {
-            return;
-        }
-        System.out.println("=== Branches ===");
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+            out.println("=== Branches ===");
 
-        List<String> branchesNames = plainFilenamesIn(BRANCHES_DIR);
-        String currentBranchName = readContentsAsString(currentBranchFile);
+            String currentBranchName = getCurrentBranchName();
 
-        // branches section
-        for (String branchName: branchesNames) {
-            if (currentBranchName.equals(branchName)) {
-                System.out.println("*" + branchName);
-                continue;
-            }
-            System.out.println(branchName);
-        }
-        System.out.println();
-
-        // List<String> cwdFileNames = plainFilenamesIn(CWD);   this is immutable
-
-        // getting rid of other 3 kinds, the remains are the untracked files
-        Set<String> allFilesInCWD = new HashSet<>(plainFilenamesIn(CWD));
-        Commit latestCommit = getLatestCommit();
-        Set<String> trackedFiles = latestCommit.getMapFromFilenameToId().keySet();
-        Set<String> modificationsNotStagedDeleted = new HashSet<>();
-        Set<String> modificationsNotStagedModified = new HashSet<>();
-
-        // stage file section
-        System.out.println("=== Staged Files ===");
-        List<String> addFileNames = plainFilenamesIn(ADDSTAGE_DIR);
-        for (String addFilename: addFileNames) {
-            File addFile = join(ADDSTAGE_DIR, addFilename);
-            File currentFile = join(CWD, addFilename);
-            if (currentFile.exists()) {
-                if (!sha1OfFile(currentFile).equals(sha1OfFile(addFile))) {
-                    // Staged for addition, but with different contents than in the working directory;
-                    modificationsNotStagedModified.add(addFilename);
+            // branches section (remote-tracking branches, named remote/branch, aren't listed)
+            for (String branchName: refs.all().keySet()) {
+                if (branchName.contains("/")) {
+                    continue;
                 }
-                // rules out files present in the working directory but neither staged for addition
-                allFilesInCWD.remove(addFilename);
-            } else {
-                // Staged for addition, but deleted in the working directory.
-                modificationsNotStagedDeleted.add(addFilename);
-            }
-            System.out.println(addFilename);
-        }
-        System.out.println();
-
-        // remove file section
-        System.out.println("=== Removed Files ===");
-        List<String> removeFilenames = plainFilenamesIn(REMOVESTAGE_DIR);
-        for (String filename: removeFilenames) {
-            if (join(CWD, filename).exists() && !trackedFiles.contains(filename)) {
-                // This includes files that have been staged for removal while re-created without Gitlet’s knowledge.
-                allFilesInCWD.add(filename);
+                if (currentBranchName.equals(branchName)) {
+                    out.println("*" + branchName);
+                    continue;
+                }
+                out.println(branchName);
             }
-            System.out.println(filename);
-        }
-        System.out.println();
-
-
-        // next 2 sections
-        for (String trackedFileName: trackedFiles) {
-            File cwdFile = join(CWD, trackedFileName);
-            String sha1OfTrackedFile = latestCommit.getMapFromFilenameToId().get(trackedFileName);
-            if (!cwdFile.exists()) {
-                if (!join(REMOVESTAGE_DIR, trackedFileName).exists()) {
-                    // Not staged for removal, but tracked in the current commit and deleted from the working directory.
-                    modificationsNotStagedDeleted.add(trackedFileName);
+            out.println();
+
+            // List<String> cwdFileNames = plainFilenamesIn(CWD);   this is immutable
+
+            // the working files and their ids as the fsmonitor knows them, null without one (then they're read here)
+            TreeMap<String, String> monitored = fsmonitor.workingFiles();
+
+            // getting rid of other 3 kinds, the remains are the untracked files
+            Set<String> allFilesInCWD = new HashSet<>(workingFilenames(monitored));
+            Commit latestCommit = getLatestCommit();
+            Set<String> trackedFiles = latestCommit.getMapFromFilenameToId().keySet();
+            Set<String> modificationsNotStagedDeleted = new HashSet<>();
+            Set<String> modificationsNotStagedModified = new HashSet<>();
+
+            // stage file section
+            out.println("=== Staged Files ===");
+            TreeMap<String, String> stagedFiles = stagedForAddition();
+            for (String addFilename: stagedFiles.keySet()) {
+                if (isWorkingFile(monitored, addFilename)) {
+                    if (!workingFileHas(monitored, addFilename, stagedFiles.get(addFilename))) {
+                        // Staged for addition, but with different contents than in the working directory;
+                        modificationsNotStagedModified.add(addFilename);
+                    }
+                    // rules out files present in the working directory but neither staged for addition
+                    allFilesInCWD.remove(addFilename);
+                } else {
+                    // Staged for addition, but deleted in the working directory.
+                    modificationsNotStagedDeleted.add(addFilename);
                 }
-            } else {
-                if (!sha1OfFile(cwdFile).equals(sha1OfTrackedFile) && !join(ADDSTAGE_DIR, trackedFileName).exists()) {
-                    // Tracked in the current commit, changed in the working directory, but not staged.
-                    modificationsNotStagedModified.add(trackedFileName);
+                out.println(addFilename);
+            }
+            out.println();
+
+            // remove file section
+            out.println("=== Removed Files ===");
+            List<String> removeFilenames = plainFilenamesIn(removeStageDir);
+            for (String filename: removeFilenames) {
+                if (isWorkingFile(monitored, filename) && !trackedFiles.contains(filename)) {
+                    // This includes files that have been staged for removal while re-created without Gitlet’s knowledge.
+                    allFilesInCWD.add(filename);
                 }
-                if (allFilesInCWD.contains(trackedFileName)) {
-                    // files present in the working directory but neither staged for tracked
-                    allFilesInCWD.remove(trackedFileName);
+                out.println(filename);
+            }
+            out.println();
+
+
+            // next 2 sections
+            try (Profiler.Phase phase = Profiler.phase("scan working tree")) {
+                // a sparse worktree only has, and only scans, the files it checks out
+                SparseCheckout sparse = SparseCheckout.read(sparseFile);
+                for (String trackedFileName: trackedFiles) {
+                    if (!sparse.includes(trackedFileName)) {
+                        continue;
+                    }
+                    String sha1OfTrackedFile = latestCommit.getMapFromFilenameToId().get(trackedFileName);
+                    if (!isWorkingFile(monitored, trackedFileName)) {
+                        if (!join(removeStageDir, trackedFileName).exists()) {
+                            // Not staged for removal, but tracked in the current commit and deleted from the working directory.
+                            modificationsNotStagedDeleted.add(trackedFileName);
+                        }
+                    } else {
+                        if (!workingFileHas(monitored, trackedFileName, sha1OfTrackedFile)
+                                && !stagedFiles.containsKey(trackedFileName)) {
+                            // Tracked in the current commit, changed in the working directory, but not staged.
+                            modificationsNotStagedModified.add(trackedFileName);
+                        }
+                        if (allFilesInCWD.contains(trackedFileName)) {
+                            // files present in the working directory but neither staged for tracked
+                            allFilesInCWD.remove(trackedFileName);
+                        }
+                    }
                 }
             }
-        }
 
-        ///  Modifications Not Staged For Commit
-        System.out.println("=== Modifications Not Staged For Commit ===");
+            ///  Modifications Not Staged For Commit
+            out.println("=== Modifications Not Staged For Commit ===");
 
-        /* Tracked in the current commit, changed in the working directory, but not staged.
-           Staged for addition, but with different contents than in the working directory.
-         */
-        for (String fileName: modificationsNotStagedDeleted) {
-            System.out.println(fileName + "(deleted)");
-        }
+            /* Tracked in the current commit, changed in the working directory, but not staged.
+               Staged for addition, but with different contents than in the working directory.
+             */
+            for (String fileName: modificationsNotStagedDeleted) {
+                out.println(fileName + "(deleted)");
+            }
 
 
-        /* Staged for addition, but deleted in the working directory.
-           Not staged for removal, but tracked in the current commit and deleted from the working directory.
-         */
-        for (String fileName: modificationsNotStagedModified) {
-            System.out.println(fileName + "(modified)");
-        }
-        System.out.println();
+            /* Staged for addition, but deleted in the working directory.
+               Not staged for removal, but tracked in the current commit and deleted from the working directory.
+             */
+            for (String fileName: modificationsNotStagedModified) {
+                out.println(fileName + "(modified)");
+            }
+            out.println();
 
-        /// Untracked Files (files present in the working directory but neither staged for addition nor tracked)
-        ///This includes files that have been staged for removal, but then re-created without Gitlet’s knowledge.
-        System.out.println("=== Untracked Files ===");
-        for (String fileName: allFilesInCWD) {
-            System.out.println(fileName);
+            /// Untracked Files (files present in the working directory but neither staged for addition nor tracked)
+            ///This includes files that have been staged for removal, but then re-created without Gitlet’s knowledge.
+            out.println("=== Untracked Files ===");
+            for (String fileName: allFilesInCWD) {
+                out.println(fileName);
+            }
+            out.println();
         }
-        System.out.println();
     }
 
 
@@ -457,17 +835,17 @@ public class Repository {
      * @param newBranchName: the name of the new branch
      */
     public void branch(String newBranchName) {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        String headOfCommit = readContentsAsString(headFIle);
-        File newBranchFile = join(BRANCHES_DIR, newBranchName);
-        if (newBranchFile.exists()) {
-            System.out.println("A branch with that name already exists.");
-            return;
+            if (refs.exists(newBranchName)) {
+                out.println("A branch with that name already exists.");
+                return;
+            }
+            refs.transaction().update(newBranchName, refs.resolveHead()).commit();
         }
-        writeContents(newBranchFile, headOfCommit);
     }
 
 
@@ -478,17 +856,19 @@ public class Repository {
      * @param filename: the name of the file to be checked out
      */
     public void checkoutForFilename(String filename) {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        Commit latestCommit = getLatestCommit();
-        if (latestCommit.getMapFromFilenameToId().containsKey(filename)) {
-            File sourceFile = join(BLOBS_DIR, latestCommit.getMapFromFilenameToId().get(filename));
-            writeContentsInFile(join(CWD, filename), sourceFile);
-            return;
+            Commit latestCommit = getLatestCommit();
+            if (latestCommit.getMapFromFilenameToId().containsKey(filename)) {
+                ensureBlobs(Collections.singleton(latestCommit.getMapFromFilenameToId().get(filename)));
+                checkoutBlob(join(cwd, filename), latestCommit.getMapFromFilenameToId().get(filename));
+                return;
+            }
+            out.println("File does not exist in that commit.");
         }
-        System.out.println("File does not exist in that commit.");
     }
 
 
@@ -501,23 +881,23 @@ public class Repository {
      * @param filename: the name of the file to be checked out
      */
     public void checkoutForSpecificFilename(String commitId, String filename) {
-        if (!checkIsInitialized()) {
-            return;
-        }
-
-        commitId = findFullCommitId(commitId);
-        if (commitId.isEmpty()) {
-            return;
-        }
-        File commitFile = join(COMMITS_DIR, commitId);
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        Commit neededCommit = readObject(commitFile, Commit.class);
-        if (neededCommit.getMapFromFilenameToId().containsKey(filename)) {
-            File sourceFile = join(BLOBS_DIR, neededCommit.getMapFromFilenameToId().get(filename));
-            writeContentsInFile(join(CWD, filename), sourceFile);
-            return;
+            commitId = findFullCommitId(commitId);
+            if (commitId.isEmpty()) {
+                return;
+            }
+            Commit neededCommit = readCommit(commitId);
+            if (neededCommit.getMapFromFilenameToId().containsKey(filename)) {
+                ensureBlobs(Collections.singleton(neededCommit.getMapFromFilenameToId().get(filename)));
+                checkoutBlob(join(cwd, filename), neededCommit.getMapFromFilenameToId().get(filename));
+                return;
+            }
+            out.println("File does not exist in that commit.");
         }
-        System.out.println("File does not exist in that commit.");
     }
 
 
@@ -529,75 +909,89 @@ public class Repository {
      * @param branchName: the branch to be checked out
      */
     public void checkoutBranch(String branchName) {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        File branchFile = join(BRANCHES_DIR, branchName);
-        if (!branchFile.exists()) {
-            System.out.println("No such branch exists.");
-            return;
-        }
+            String destSHA1 = refs.resolve(branchName);
+            if (destSHA1 == null) {
+                out.println("No such branch exists.");
+                return;
+            }
 
-        if (branchName.equals(readContentsAsString(currentBranchFile))) {
-            System.out.println("No need to checkout the current branch.");
-            return;
-        }
+            if (branchName.equals(getCurrentBranchName())) {
+                out.println("No need to checkout the current branch.");
+                return;
+            }
 
-        Commit latestCommit = getLatestCommit();
-        Set<String> trackedFiles = latestCommit.getMapFromFilenameToId().keySet();
-        List<String> addStageFiles = plainFilenamesIn(ADDSTAGE_DIR);
-        List<String> cwdFiles = plainFilenamesIn(CWD);
+            if (worktreeWithBranch(branchName) != null) {
+                out.println("That branch is checked out in another worktree.");
+                return;
+            }
 
-        String destSHA1 = readContentsAsString(branchFile);
-        Commit commitOfBranch = readObject(join(COMMITS_DIR, destSHA1), Commit.class);
-        Set<String> filesNeeded = commitOfBranch.getMapFromFilenameToId().keySet();
+            Commit latestCommit = getLatestCommit();
+            Set<String> trackedFiles = latestCommit.getMapFromFilenameToId().keySet();
+            List<String> addStageFiles = new ArrayList<>(stagedForAddition().keySet());
+            List<String> cwdFiles = workingFilenames();
 
+            Commit commitOfBranch = readCommit(destSHA1);
+            Set<String> filesNeeded = commitOfBranch.getMapFromFilenameToId().keySet();
+            // in a sparse worktree only these are written
+            Map<String, String> filesCheckedOut = sparseFiles(commitOfBranch);
 
-        if (hasUntrackedFileToBeOverwritten(cwdFiles, trackedFiles, addStageFiles, filesNeeded)) {
-            return;
-        }
 
+            if (hasUntrackedFileToBeOverwritten(cwdFiles, trackedFiles, addStageFiles, filesCheckedOut.keySet())) {
+                return;
+            }
 
-        for (String fileNeededName: filesNeeded) {
-            File neededFile = join(CWD, fileNeededName);
-            File sourceFile = join(BLOBS_DIR, commitOfBranch.getMapFromFilenameToId().get(fileNeededName));
-            writeContentsInFile(neededFile, sourceFile);
-        }
 
-        // Any files that are tracked in the current branch but are not present in the checked-out branch are deleted.
-        for (String trackedFileName: trackedFiles) {
-            if (!filesNeeded.contains(trackedFileName)) {
-                restrictedDelete(join(CWD, trackedFileName));
+            ensureBlobs(filesCheckedOut.values());
+            try (Profiler.Phase phase = Profiler.phase("write working tree")) {
+                for (Map.Entry<String, String> fileNeeded: filesCheckedOut.entrySet()) {
+                    checkoutBlob(join(cwd, fileNeeded.getKey()), fileNeeded.getValue());
+                }
+
+                // Any files that are tracked in the current branch but are not present in the checked-out branch are deleted.
+                for (String trackedFileName: trackedFiles) {
+                    if (!filesNeeded.contains(trackedFileName)) {
+                        restrictedDelete(join(cwd, trackedFileName));
+                    }
+                }
             }
-        }
 
-        clearDir(ADDSTAGE_DIR);
-        clearDir(REMOVESTAGE_DIR);
+            clearStage();
 
-        setHeadAndBranch(destSHA1, branchName);
+            setHeadAndBranch(destSHA1, branchName);
+        }
     }
 
 
     /** remove branch command
      *  Deletes the branch with the given name.(just a pointer) */
     public void removeBranch(String branchName) {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        File branchFileToBeRemoved = join(BRANCHES_DIR, branchName);
-        if (!branchFileToBeRemoved.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            return;
-        }
+            if (!refs.exists(branchName)) {
+                out.println("A branch with that name does not exist.");
+                return;
+            }
 
-        if (readContentsAsString(currentBranchFile).equals(branchName)) {
-            System.out.println("Cannot remove the current branch.");
-            return;
-        }
+            if (getCurrentBranchName().equals(branchName)) {
+                out.println("Cannot remove the current branch.");
+                return;
+            }
 
-        restrictedDelete(branchFileToBeRemoved);
+            if (worktreeWithBranch(branchName) != null) {
+                out.println("Cannot remove a branch checked out in another worktree.");
+                return;
+            }
+
+            refs.transaction().delete(branchName).commit();
+        }
     }
 
 
@@ -610,7 +1004,7 @@ public class Repository {
             if (!trackedFiles.contains(cwdFilename)
                     && !addStageFiles.contains(cwdFilename)
                     && filesNeeded.contains(cwdFilename)) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+                out.println("There is an untracked file in the way; delete it, or add and commit it first.");
                 return true;
             }
         }
@@ -620,7 +1014,7 @@ public class Repository {
 
     /// abbreviated commitId to full id
     private String findFullCommitId(String shortId) {
-        List<String> allCommitIds = plainFilenamesIn(COMMITS_DIR);
+        List<String> allCommitIds = objects.ids(ObjectDatabase.Kind.COMMIT);
 
         for (String currentId: allCommitIds) {
             if (currentId.startsWith(shortId)) {
@@ -628,7 +1022,7 @@ public class Repository {
             }
         }
 
-        System.out.println("No commit with that id exists.");
+        out.println("No commit with that id exists.");
         return "";
     }
 
@@ -638,60 +1032,64 @@ public class Repository {
      * @param commitID: the given commitID(sha1)
      */
     public void reset(String commitID, boolean notRemote) {
-        if (!checkIsInitialized()) {
-            return;
-        }
-
-        commitID = findFullCommitId(commitID);
-        if (commitID.isEmpty()) {
-            return;
-        }
-
-        Commit commitNeeded = readObject(join(COMMITS_DIR, commitID), Commit.class);
-        Set<String> fileNeededNames = commitNeeded.getMapFromFilenameToId().keySet();
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        Commit latestCommit = getLatestCommit();
-        Set<String> trackedFiles = latestCommit.getMapFromFilenameToId().keySet();
-        List<String> addStageFiles = plainFilenamesIn(ADDSTAGE_DIR);
-        if (notRemote) {
-            List<String> cwdFiles = plainFilenamesIn(CWD);
+            commitID = findFullCommitId(commitID);
+            if (commitID.isEmpty()) {
+                return;
+            }
 
-            if (hasUntrackedFileToBeOverwritten(cwdFiles, trackedFiles, addStageFiles, fileNeededNames)) {
+            Commit commitNeeded = readCommit(commitID);
+            Set<String> fileNeededNames = commitNeeded.getMapFromFilenameToId().keySet();
+            // in a sparse worktree only these are written
+            Map<String, String> filesCheckedOut = sparseFiles(commitNeeded);
+
+            Commit latestCommit = getLatestCommit();
+            Set<String> trackedFiles = latestCommit.getMapFromFilenameToId().keySet();
+            List<String> addStageFiles = new ArrayList<>(stagedForAddition().keySet());
+            List<String> cwdFiles = notRemote ? workingFilenames() : List.of();
+            if (notRemote
+                    && hasUntrackedFileToBeOverwritten(cwdFiles, trackedFiles, addStageFiles, filesCheckedOut.keySet())) {
                 return;
             }
 
-            // Removes tracked files that are not present in that commit.
-            for (String cwdFile : cwdFiles) {
-                if (!fileNeededNames.contains(cwdFile)) {
-                    restrictedDelete(join(CWD, cwdFile));
+            // every blob is here before a file is touched: a failed fetch leaves the working directory as it was
+            ensureBlobs(filesCheckedOut.values());
+
+            if (notRemote) {
+                // Removes tracked files that are not present in that commit.
+                for (String cwdFile : cwdFiles) {
+                    if (!fileNeededNames.contains(cwdFile)) {
+                        restrictedDelete(join(cwd, cwdFile));
+                    }
                 }
             }
-        }
 
-        // checks out all the files tracked by the given commit.
-        for (String fileNeededName: fileNeededNames) {
-            checkoutForSpecificFilename(commitID, fileNeededName);
-        }
+            // checks out all the files tracked by the given commit.
+            for (Map.Entry<String, String> fileNeeded: filesCheckedOut.entrySet()) {
+                checkoutBlob(join(cwd, fileNeeded.getKey()), fileNeeded.getValue());
+            }
 
 
-        // the staging area is cleared
-        clearDir(ADDSTAGE_DIR);
-        clearDir(REMOVESTAGE_DIR);
+            // the staging area is cleared
+            clearStage();
 
-        setHeadAndBranch(commitID, getCurrentBranchName());
+            setHeadAndBranch(commitID, getCurrentBranchName());
+        }
     }
 
 
     /// get current branch name
     String getCurrentBranchName() {
-        return readContentsAsString(currentBranchFile);
+        return refs.getHead();
     }
 
     /// get commit of the branch given
     Commit getCommitOfBranch(String branchName) {
-        String objSha1 = readContentsAsString(join(BRANCHES_DIR, branchName));
-        File objFile = join(COMMITS_DIR, objSha1);
-        return readObject(objFile, Commit.class);
+        return readCommit(refs.resolve(branchName));
     }
 
 
@@ -703,91 +1101,140 @@ public class Repository {
      * @param branchName: the name of the branch to be merged from
      */
     public void merge(String branchName) {
-        if (!checkIsInitialized()) {
-            return;
-        }
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
 
-        List<String> cwdFileNames = plainFilenamesIn(CWD);
-        List<String> addStageFileNames = plainFilenamesIn(ADDSTAGE_DIR);
-        List<String> removeStageFileNames = plainFilenamesIn(REMOVESTAGE_DIR);
+            List<String> cwdFileNames = workingFilenames();
+            Set<String> addStageFileNames = stagedForAddition().keySet();
+            List<String> removeStageFileNames = plainFilenamesIn(removeStageDir);
 
-        // If there are staged additions or removals present
-        if (!addStageFileNames.isEmpty() || !removeStageFileNames.isEmpty()) {
-            System.out.println("You have uncommitted changes.");
-            return;
-        }
-
-        // If a branch with the given name does not exist
-        if (!join(BRANCHES_DIR, branchName).exists()) {
-            System.out.println("A branch with that name does not exist.");
-            return;
-        }
+            // If there are staged additions or removals present
+            if (!addStageFileNames.isEmpty() || !removeStageFileNames.isEmpty()) {
+                out.println("You have uncommitted changes.");
+                return;
+            }
 
-        if (getCurrentBranchName().equals(branchName)) {
-            System.out.println("Cannot merge a branch with itself.");
-            return;
-        }
+            // If a branch with the given name does not exist
+            if (!refs.exists(branchName)) {
+                out.println("A branch with that name does not exist.");
+                return;
+            }
 
-        Commit splitCommit = getSplitPoint(branchName);
-        Commit currentCommit = getLatestCommit();
-        Commit branchCommit = getCommitOfBranch(branchName);
+            if (getCurrentBranchName().equals(branchName)) {
+                out.println("Cannot merge a branch with itself.");
+                return;
+            }
 
-        /*  If an untracked file in the current commit would be overwritten or deleted by the merge
-         print There is an untracked file in the way; delete it, or add and commit it first.
-         and exit */
-        for (String cwdfile: cwdFileNames) {
-            if (!currentCommit.getMapFromFilenameToId().containsKey(cwdfile)) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+            Commit splitCommit;
+            try (Profiler.Phase phase = Profiler.phase("find split point")) {
+                splitCommit = getSplitPoint(branchName);
+            }
+            if (splitCommit == null) {
+                // only possible in a shallow repository
+                out.println("No split point in the fetched history; fetch more of it first.");
                 return;
             }
-        }
+            Commit currentCommit = getLatestCommit();
+            Commit branchCommit = getCommitOfBranch(branchName);
+
+            /*  If an untracked file in the current commit would be overwritten or deleted by the merge
+             print There is an untracked file in the way; delete it, or add and commit it first.
+             and exit */
+            for (String cwdfile: cwdFileNames) {
+                if (!currentCommit.getMapFromFilenameToId().containsKey(cwdfile)) {
+                    out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+                    return;
+                }
+            }
 
 
 
-        if (branchCommit.equals(splitCommit)) {
-            System.out.println("Given branch is an ancestor of the current branch.");
-            return;
-        }
+            if (branchCommit.equals(splitCommit)) {
+                out.println("Given branch is an ancestor of the current branch.");
+                return;
+            }
 
-        if (currentCommit.equals(splitCommit)) {
-            checkoutBranch(branchName);
-            System.out.println("Current branch fast-forwarded.");
-            return;
-        }
+            if (currentCommit.equals(splitCommit)) {
+                checkoutBranch(branchName);
+                out.println("Current branch fast-forwarded.");
+                return;
+            }
 
-        Set<String> allFileNames = new HashSet<>(splitCommit.getMapFromFilenameToId().keySet());
-        allFileNames.addAll(currentCommit.getMapFromFilenameToId().keySet());
-        allFileNames.addAll(branchCommit.getMapFromFilenameToId().keySet());
+            // one sorted pass over the three file maps; a file the same in all of them remains as it is
+            List<String> allFileNames = new ArrayList<>();
+            Manifest.Walk walk = Manifest.walk(splitCommit.getMapFromFilenameToId(),
+                    currentCommit.getMapFromFilenameToId(), branchCommit.getMapFromFilenameToId());
+            while (walk.next()) {
+                if (!walk.same(0, 1) || !walk.same(0, 2)) {
+                    allFileNames.add(walk.path());
+                }
+            }
 
-        boolean conflictOccurred = false;
-        for (String fileName: allFileNames) {
-            switch (checkWhatToDoInMerge(fileName, currentCommit, splitCommit, branchCommit)) {
-                case SIGN_TO_CHANGE:
-                    changeFileTo(fileName, branchCommit);
-                    break;
-                case SIGN_TO_REMAIN:
-                    break;
-                case SIGN_OF_CONFLICT:
-                    conflictOccurred = true;
-                    updateConflictFile(fileName, branchCommit);
-                    break;
-                default:
-                    break;
+            // in a partial repository, the blobs the merge reads are fetched all together first
+            if (promisorFile.exists()) {
+                ensureBlobs(blobsReadByMerge(allFileNames, currentCommit, splitCommit, branchCommit));
+            }
+
+            boolean conflictOccurred = false;
+            try (Profiler.Phase phase = Profiler.phase("apply changes")) {
+                for (String fileName: allFileNames) {
+                    switch (checkWhatToDoInMerge(fileName, currentCommit, splitCommit, branchCommit)) {
+                        case SIGN_TO_CHANGE:
+                            changeFileTo(fileName, branchCommit);
+                            break;
+                        case SIGN_TO_REMAIN:
+                            break;
+                        case SIGN_OF_CONFLICT:
+                            conflictOccurred = true;
+                            updateConflictFile(fileName, branchCommit);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+            String mergeMessage = "Merged " + branchName + " into " + getCurrentBranchName() + ".";
+            commit(mergeMessage, branchCommit);
+
+            if (conflictOccurred) {
+                out.println("Encountered a merge conflict.");
             }
         }
-        String mergeMessage = "Merged " + branchName + " into " + getCurrentBranchName() + ".";
-        commit(mergeMessage, branchCommit);
+    }
 
-        if (conflictOccurred) {
-            System.out.println("Encountered a merge conflict.");
+    /// the blobs whose content the merge reads: the changed files of branch, both sides of the conflicts
+    private Set<String> blobsReadByMerge(List<String> fileNames, Commit current, Commit split, Commit branch) {
+        Set<String> blobIds = new HashSet<>();
+        for (String fileName: fileNames) {
+            int decision = checkWhatToDoInMerge(fileName, current, split, branch);
+            if (decision == SIGN_TO_CHANGE || decision == SIGN_OF_CONFLICT) {
+                String branchBlobId = branch.getMapFromFilenameToId().get(fileName);
+                if (branchBlobId != null) {
+                    blobIds.add(branchBlobId);
+                }
+            }
+            if (decision == SIGN_OF_CONFLICT) {
+                String currentBlobId = current.getMapFromFilenameToId().get(fileName);
+                if (currentBlobId != null) {
+                    blobIds.add(currentBlobId);
+                }
+            }
         }
+        return blobIds;
     }
 
     /// if the file state in split and current is the same (while different from branch), change to the branch state
     private void changeFileTo(String fileName, Commit branch) {
         Commit current = getLatestCommit();
         if (branch.getMapFromFilenameToId().containsKey(fileName)) {
-            checkoutForSpecificFilename(sha1OfObject(branch), fileName);
+            if (!SparseCheckout.read(sparseFile).includes(fileName)) {
+                // not checked out here: staged by id, the content isn't needed
+                stageForAddition(fileName, branch.getMapFromFilenameToId().get(fileName));
+                return;
+            }
+            checkoutForSpecificFilename(branch.getId(), fileName);
             add(fileName);
         } else {
             rm(fileName);
@@ -798,7 +1245,7 @@ public class Repository {
     private String getBlobContent(Commit commit, String fileName) {
         if (commit.getMapFromFilenameToId().containsKey(fileName)) {
             String blobId = commit.getMapFromFilenameToId().get(fileName);
-            return readContentsAsString(join(BLOBS_DIR, blobId));
+            return new String(objects.read(ObjectDatabase.Kind.BLOB, blobId), StandardCharsets.UTF_8);
         }
         return "";
     }
@@ -817,17 +1264,17 @@ public class Repository {
                 + "=======" + System.lineSeparator()
                 + branchContent + ">>>>>>>" + System.lineSeparator();
 
-        writeContents(join(CWD, fileName), content);
+        writeContents(join(cwd, fileName), content);
 
         add(fileName);
     }
 
 
-    private static final int SIGN_TO_CHANGE = 1;
-    private static final int SIGN_TO_REMAIN = 2;
-    private static final int SIGN_OF_CONFLICT = 3;
+    static final int SIGN_TO_CHANGE = 1;
+    static final int SIGN_TO_REMAIN = 2;
+    static final int SIGN_OF_CONFLICT = 3;
     /// based on states of current, split and branch, decide what to do.
-    private int checkWhatToDoInMerge(String fileName, Commit current, Commit split, Commit branch) {
+    static int checkWhatToDoInMerge(String fileName, Commit current, Commit split, Commit branch) {
         if (isSameInCommit(fileName, current, split) 
                 && isSameInCommit(fileName, current, branch) 
                 && isSameInCommit(fileName, split, branch)) {
@@ -848,7 +1295,7 @@ public class Repository {
     }
 
     /// check if the states of a file in two commits are the same (exist or not, modified or not)
-    private boolean isSameInCommit(String fileName, Commit commit1, Commit commit2) {
+    private static boolean isSameInCommit(String fileName, Commit commit1, Commit commit2) {
         boolean c1Contains = commit1.getMapFromFilenameToId().containsKey(fileName);
         boolean c2Contains = commit2.getMapFromFilenameToId().containsKey(fileName);
         String s1 = commit1.getMapFromFilenameToId().get(fileName);
@@ -881,80 +1328,337 @@ public class Repository {
      * usage2: else, find the first commit present in destCommit
      */
     private Commit bfsSearchHistoryFrom(Commit start, HashSet<Commit> visitedBranch, HashSet<Commit> destCommit) {
+        GitletEvents.HistoryWalk event = GitletEvents.beginHistoryWalk();
+        Set<String> shallowCommits = readShallow();
         Queue<Commit> queue = new LinkedList<>();
         visitedBranch.add(start);
         queue.offer(start);
-        while (!queue.isEmpty()) {
-            Commit current = queue.poll();
-            Commit parent1 = current.getParent1();
-            Commit parent2 = current.getParent2();
-
-            if (destCommit != null) {
-                if (destCommit.contains(current)) {
-                    return current;
+        int commitsVisited = 0;
+        try (ReadAhead readAhead = readAhead(shallowCommits)) {
+            while (!queue.isEmpty()) {
+                Commit current = queue.poll();
+                commitsVisited++;
+
+                if (destCommit != null) {
+                    if (destCommit.contains(current)) {
+                        commitHistoryWalkEvent(event, start, commitsVisited, true);
+                        return current;
+                    }
+                }
+
+                // the parents of a shallow boundary commit were never fetched
+                if (!shallowCommits.isEmpty() && shallowCommits.contains(current.getId())) {
+                    continue;
+                }
+                readAhead.visit(current);
+                Commit parent1 = current.getParent1(this);
+                Commit parent2 = current.getParent2(this);
+
+                // climb along parent1
+                if (parent1 != null && !visitedBranch.contains(parent1)) {
+                    visitedBranch.add(parent1);
+                    queue.offer(parent1);
+                }
+                // climb along parent2
+                if (parent2 != null && !visitedBranch.contains(parent2)) {
+                    visitedBranch.add(parent2);
+                    queue.offer(parent2);
+                }
+            }
+        }
+
+        commitHistoryWalkEvent(event, start, commitsVisited, false);
+        return null;
+    }
+
+
+    private void commitHistoryWalkEvent(GitletEvents.HistoryWalk event, Commit start, int commitsVisited,
+                                        boolean found) {
+        if (event != null && event.shouldCommit()) {
+            event.objectId = start.getId();
+            event.commitsVisited = commitsVisited;
+            event.found = found;
+            event.command = GitletEvents.getCommand();
+            event.commit();
+        }
+    }
+
+
+    /// the commits whose parents were not fetched (fetch --depth), empty unless the repository is shallow
+    private Set<String> readShallow() {
+        Set<String> shallowCommits = new HashSet<>();
+        if (shallowFile.isFile()) {
+            for (String line: readContentsAsString(shallowFile).split("\n")) {
+                if (!line.isEmpty()) {
+                    shallowCommits.add(line);
                 }
             }
+        }
+        return shallowCommits;
+    }
+
 
-            // climb along parent1
-            if (parent1 != null && !visitedBranch.contains(parent1)) {
-                visitedBranch.add(parent1);
-                queue.offer(parent1);
+    /// replace the shallow file with the given commits, removing it when there is none
+    private void writeShallow(Set<String> shallowCommits) {
+        if (shallowCommits.isEmpty()) {
+            shallowFile.delete();
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        for (String commitId: new TreeSet<>(shallowCommits)) {
+            content.append(commitId).append('\n');
+        }
+        writeContentsAtomically(shallowFile, tmpDir, content.toString());
+    }
+
+
+    /// the commit every repository starts with: no files, at the epoch, hence the same in all of them
+    private static Commit initialCommit() {
+        return new Commit("initial commit", new Date(0L), new TreeMap<String, String>(), null, null);
+    }
+
+
+    /** fast-import command
+     * Imports history from a stream in the git fast-import format (see FastImport for what of it is understood):
+     * the blobs and commits are written straight into the object store, without going through a working directory
+     * or the staging area, and made visible together when the branches are updated, all at once, at the end.
+     * Neither HEAD nor the working directory are touched: when the current branch was imported,
+     * reset to it to see its files.
+     * @param in: the stream, e.g. the output of git fast-export
+     */
+    public void fastImport(InputStream in) {
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+            FastImport fastImport = new FastImport(objects, this::readCommit, refs::resolve, initialCommit());
+            Map<String, String> branches;
+            try (Profiler.Phase phase = Profiler.phase("import")) {
+                branches = fastImport.run(in);
             }
-            // climb along parent2
-            if (parent2 != null && !visitedBranch.contains(parent2)) {
-                visitedBranch.add(parent2);
-                queue.offer(parent2);
+            // everything imported reaches the disk at once, then the branches point to it
+            flushObjects();
+            Durability.sync();
+            RefStore.Transaction transaction = refs.transaction();
+            for (Map.Entry<String, String> branch: branches.entrySet()) {
+                transaction.update(branch.getKey(), branch.getValue());
             }
+            transaction.commit();
+            out.println("Imported " + fastImport.getCommitsImported() + " commits and "
+                    + fastImport.getBlobsImported() + " blobs.");
         }
+    }
 
-        return null;
+
+    /** bundle create command
+     * Writes into one file the given branches with the commits and blobs they need (see Bundle),
+     * for another repository to take in with bundle unbundle, where no remote can be reached.
+     * @param excludes: branches or commit ids the receiving repository has already: their history is left out,
+     *                and they become prerequisites of the bundle
+     */
+    public void bundleCreate(String fileName, List<String> branchNames, List<String> excludes) {
+        withPromisedBlobs(() -> doBundleCreate(fileName, branchNames, excludes));
     }
 
+    private void doBundleCreate(String fileName, List<String> branchNames, List<String> excludes) {
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+            Map<String, String> branches = new LinkedHashMap<>();
+            for (String branchName: branchNames) {
+                String commitId = refs.resolve(branchName);
+                if (commitId == null) {
+                    out.println("A branch with that name does not exist.");
+                    return;
+                }
+                branches.put(branchName, commitId);
+            }
+            List<String> excluded = new ArrayList<>();
+            for (String exclude: excludes) {
+                String commitId = refs.resolve(exclude);
+                if (commitId == null) {
+                    commitId = findFullCommitId(exclude);
+                    if (commitId.isEmpty()) {
+                        return;
+                    }
+                }
+                excluded.add(commitId);
+            }
+            Bundle bundle = new Bundle(objects, this::readCommit, this::ensureBlobs);
+            try (Profiler.Phase phase = Profiler.phase("write bundle")) {
+                bundle.create(resolve(fileName), branches, excluded, readShallow());
+            }
+            out.println("Bundled " + bundle.getCommits() + " commits and " + bundle.getBlobs() + " blobs.");
+        }
+    }
 
-    /// remotes commands
 
-    /** helper method: change CWD and every directory related
-     * in convenience for reuse the former code
+    /** bundle unbundle command
+     * Takes in the commits and blobs of a bundle file, checking every object and the checksum of the whole,
+     * and points the remote-tracking branches bundle/[branch] at its branches: merge them as after a fetch.
      */
-    private void changeCwd(File dest) {
-        /** The current working directory. */
-        CWD = dest;
-        /** The .gitlet directory. */
-        GITLET_DIR = join(CWD, ".gitlet");
-        /** The objects directory **/
-        OBJECTS_DIR = join(GITLET_DIR, "objects");
-        /** The commits directory */
-        COMMITS_DIR = join(OBJECTS_DIR, "commits");
-        /** The blobs directory */
-        BLOBS_DIR = join(OBJECTS_DIR, "blobs");
-        /** The branches directory */
-        BRANCHES_DIR = join(GITLET_DIR, "branches");
-        /** The stages directory */
-        STAGES_DIR = join(GITLET_DIR, "stages");
-        /** The addStage directory */
-        ADDSTAGE_DIR = join(STAGES_DIR, "addStage");
-        /** The removeStage directory */
-        REMOVESTAGE_DIR = join(STAGES_DIR, "removeStage");
-        /** The remotes directory */
-        REMOTES_DIR = join(GITLET_DIR, "remotes");
-
-        headFIle = join(GITLET_DIR, "head");
-        currentBranchFile = join(GITLET_DIR, "branch");
+    public void bundleUnbundle(String fileName) {
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+            File file = resolve(fileName);
+            if (!file.isFile()) {
+                out.println("Bundle file not found.");
+                return;
+            }
+            Bundle bundle = new Bundle(objects, this::readCommit, this::ensureBlobs);
+            Map<String, String> branches;
+            try (Profiler.Phase phase = Profiler.phase("read bundle")) {
+                branches = bundle.unbundle(file);
+            }
+            RefStore.Transaction transaction = refs.transaction();
+            for (Map.Entry<String, String> branch: branches.entrySet()) {
+                transaction.update("bundle/" + branch.getKey(), branch.getValue());
+            }
+            // the objects are flushed and synced first, see RefStore
+            transaction.commit();
+            out.println("Unbundled " + bundle.getCommits() + " commits and " + bundle.getBlobs() + " blobs.");
+        }
     }
 
 
+    /** archive command
+     * Writes the files of a commit (a branch or a commit id) into a tar or zip file, streamed from the object store
+     * without a working tree (see Archive). The same commit always gives the same file.
+     */
+    public void archive(String commitName, Archive.Format format, String fileName) {
+        withPromisedBlobs(() -> doArchive(commitName, format, fileName));
+    }
+
+    private void doArchive(String commitName, Archive.Format format, String fileName) {
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+            String commitId = refs.resolve(commitName);
+            if (commitId == null) {
+                commitId = findFullCommitId(commitName);
+                if (commitId.isEmpty()) {
+                    return;
+                }
+            }
+            Commit commit = readCommit(commitId);
+            ensureBlobs(commit.getMapFromFilenameToId().values());
+            Archive archive = new Archive(objects);
+            try (Profiler.Phase phase = Profiler.phase("write archive")) {
+                archive.write(resolve(fileName), commit, format);
+            }
+            out.println("Archived " + archive.getFiles() + " files.");
+        }
+    }
+
+
+    /** gc command
+     * Deletes the commits and blobs that can't be reached any more:
+     * everything reachable from a branch (remote-tracking branches included), the head or the staging area is kept,
+     * so are unreachable objects modified less than graceSeconds ago.
+     * @param dryRun: only report what would be removed
+     * @param graceSeconds: the grace period
+     */
+    public void gc(boolean dryRun, long graceSeconds) {
+        try (RepositoryLock lock = lock(!dryRun)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+
+            // every branch, remote-tracking ones included; HEAD is one of them
+            List<String> rootCommits = new ArrayList<>(refs.all().values());
+
+            // what is staged in any worktree
+            List<String> rootBlobs = new ArrayList<>();
+            for (File worktreeDir: allGitletDirs()) {
+                rootBlobs.addAll(readAddStage(join(worktreeDir, "stages")).values());
+            }
+
+            GarbageCollector collector = new GarbageCollector(objects, readShallow());
+            try (Profiler.Phase phase = Profiler.phase("mark")) {
+                collector.mark(rootCommits, rootBlobs);
+            }
+            if (!collector.getErrors().isEmpty()) {
+                // sweeping with an incomplete mark would delete live objects
+                for (String error: collector.getErrors()) {
+                    out.println(error);
+                }
+                out.println("The object store is damaged; nothing was removed.");
+                return;
+            }
+            try (Profiler.Phase phase = Profiler.phase("sweep")) {
+                collector.sweep(graceSeconds * 1000, dryRun);
+            }
+            if (!dryRun) {
+                try (Profiler.Phase phase = Profiler.phase("compact")) {
+                    objects.compact();
+                }
+                // after compacting: the deletes of a log store are pending in tmp until then
+                deleteStaleTempFiles(graceSeconds * 1000);
+            }
+            out.println(collector.report(dryRun));
+        }
+    }
+
+
+    /// delete the temporary files of writes that never finished (a crashed command), older than graceMillis
+    private void deleteStaleTempFiles(long graceMillis) {
+        List<String> tempFiles = plainFilenamesIn(tmpDir);
+        if (tempFiles == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        for (String tempFileName: tempFiles) {
+            File tempFile = join(tmpDir, tempFileName);
+            if (tempFile.lastModified() < cutoff) {
+                tempFile.delete();
+            }
+        }
+    }
+
+
+    /** fsck command
+     * Checks that every object is stored under the hash of its content,
+     * and that every commit only refers to blobs and parents which exist.
+     */
+    public void fsck() {
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+
+            IntegrityChecker checker = new IntegrityChecker(objects, readShallow(), this::promisedBlobs);
+            checker.check();
+            List<String> problems = checker.getProblems();
+            for (String problem: problems) {
+                out.println(problem);
+            }
+            out.println(problems.isEmpty() ? "No problems found." : problems.size() + " problems found.");
+            out.println(checker.report());
+        }
+    }
+
+
+    /// remotes commands
+
+
     /** add-remote command
      * Saves the given login information under the given remote name.
      */
     public void addRemote(String remoteName, String remotePath) {
-        File remoteFile = join(REMOTES_DIR, remoteName);
+        try (RepositoryLock lock = lock(true)) {
+            File remoteFile = join(remotesDir, remoteName);
 
-        if (remoteFile.exists()) {
-            System.out.println("A remote with that name already exists.");
-            return;
+            if (remoteFile.exists()) {
+                out.println("A remote with that name already exists.");
+                return;
+            }
+            String systemSeparatedPath = remotePath.replace("/", File.separator);
+            writeContents(remoteFile, systemSeparatedPath);
         }
-        String systemSeparatedPath = remotePath.replace("/", File.separator);
-        writeContents(remoteFile, systemSeparatedPath);
     }
 
 
@@ -962,24 +1666,32 @@ public class Repository {
      * Remove information associated with the given remote name.
      */
     public void rmRemote(String remoteName) {
-        File remoteFile = join(REMOTES_DIR, remoteName);
-        if (!remoteFile.exists()) {
-            System.out.println("A remote with that name does not exist.");
-            return;
+        try (RepositoryLock lock = lock(true)) {
+            File remoteFile = join(remotesDir, remoteName);
+            if (!remoteFile.exists()) {
+                out.println("A remote with that name does not exist.");
+                return;
+            }
+            restrictedDelete(remoteFile);
         }
-        restrictedDelete(remoteFile);
     }
 
 
     /** use string truncation to get the directory where the remote .gitlet is in
-     * prepared for changing cwd back and forth (easier for code reuse)
+     * a relative location is relative to the working directory of this repository
      */
     private File getRemoteCwd(String remoteName) {
-        String remoteGitletPath = readContentsAsString(join(REMOTES_DIR, remoteName));
-        // prepare for the CWD change (reset)
+        String remoteGitletPath = readContentsAsString(join(remotesDir, remoteName));
         int lastSeparatorIndex = remoteGitletPath.lastIndexOf(File.separator);
         String remoteCwdPath = remoteGitletPath.substring(0, lastSeparatorIndex);
-        return new File(remoteCwdPath);
+        return resolve(remoteCwdPath);
+    }
+
+
+    /// the file at path, relative to the working directory unless it is absolute
+    private File resolve(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : join(cwd, path).toPath().normalize().toFile();
     }
 
 
@@ -988,71 +1700,96 @@ public class Repository {
      * This command only works if the remote branch’s head is in the history of the current local head
      */
     public void push(String remoteName, String remoteBranchName) {
-        String remoteGitletPath = readContentsAsString(join(REMOTES_DIR, remoteName));
-        File remoteCwdDir = getRemoteCwd(remoteName);
-        File originCwd = CWD;
-
-        File remoteGitletDir = new File(remoteGitletPath);
+        withPromisedBlobs(() -> doPush(remoteName, remoteBranchName));
+    }
 
-        if (!remoteGitletDir.exists()) {
-            System.out.println("Remote directory not found.");
-            return;
-        }
+    private void doPush(String remoteName, String remoteBranchName) {
+        try (RepositoryLock lock = lock(false)) {
+            Repository remote = new Repository(getRemoteCwd(remoteName), out);
 
-        // temporarily change to remote repository
-        changeCwd(remoteCwdDir);
-        Commit remoteBranchHeadCommit = getCommitOfBranch(remoteBranchName);
+            if (!remote.gitletDir.exists()) {
+                out.println("Remote directory not found.");
+                return;
+            }
 
-        // If the remote branch’s head is not in the history of the current local head
-        changeCwd(originCwd);
-        Commit headCommit = getLatestCommit();
-        HashSet<Commit> dest = new HashSet<>();
-        dest.add(remoteBranchHeadCommit);
-        HashSet<Commit> futureCommits = new HashSet<>();
-        if (bfsSearchHistoryFrom(headCommit, futureCommits, dest) == null) {
-            System.out.println("Please pull down remote changes before pushing.");
-            return;
-        }
+            // the remote is written to, nobody else may use it meanwhile
+            try (RepositoryLock remoteLock = remote.lock(true)) {
+                Commit remoteBranchHeadCommit = remote.getCommitOfBranch(remoteBranchName);
+
+                // If the remote branch’s head is not in the history of the current local head
+                Commit headCommit = getLatestCommit();
+                HashSet<Commit> dest = new HashSet<>();
+                dest.add(remoteBranchHeadCommit);
+                HashSet<Commit> futureCommits = new HashSet<>();
+                Commit remoteHeadInHistory;
+                try (Profiler.Phase phase = Profiler.phase("walk history")) {
+                    remoteHeadInHistory = bfsSearchHistoryFrom(headCommit, futureCommits, dest);
+                }
+                if (remoteHeadInHistory == null) {
+                    out.println("Please pull down remote changes before pushing.");
+                    return;
+                }
 
+                // a shallow boundary commit can only go where its parents already are
+                Set<String> shallowCommits = readShallow();
+                for (Commit commit: futureCommits) {
+                    if (shallowCommits.contains(commit.getId()) && !remote.hasParents(commit)) {
+                        out.println("Cannot push history this shallow repository hasn't fetched.");
+                        return;
+                    }
+                }
 
-        for (Commit commit: futureCommits) {
-            copyCommit(commit, originCwd, remoteCwdDir);
-        }
-        String headId = sha1OfObject(headCommit);
+                // a partial repository may lack blobs of its commits, the ones the remote hasn't either are fetched
+                if (promisorFile.exists()) {
+                    Set<String> blobsNeeded = new HashSet<>();
+                    for (Commit commit: futureCommits) {
+                        blobsNeeded.addAll(commit.getMapFromFilenameToId().values());
+                    }
+                    blobsNeeded.removeIf(blobId -> objects.has(ObjectDatabase.Kind.BLOB, blobId));
+                    blobsNeeded.removeIf(blobId -> remote.objects.has(ObjectDatabase.Kind.BLOB, blobId));
+                    ensureBlobs(blobsNeeded);
+                }
 
-        // change to remote repo
-        changeCwd(remoteCwdDir);
-        File currentBranchContent = join(BRANCHES_DIR, remoteBranchName);
-        writeContents(currentBranchContent, headId);
+                try (Profiler.Phase phase = Profiler.phase("copy objects")) {
+                    for (Commit commit: futureCommits) {
+                        copyCommit(commit, this, remote, true);
+                    }
+                }
+                String headId = headCommit.getId();
 
-        /* add an extra parameter for code reuse
-           directly visit remote cwd would cause access control exception*/
-        reset(headId, false);
+                try (Profiler.Phase phase = Profiler.phase("update remote")) {
+                    remote.refs.transaction().update(remoteBranchName, headId).commit();
 
-        changeCwd(originCwd); // change back
+                    // the files of the remote working directory are left alone
+                    remote.reset(headId, false);
+                }
+            }
+        }
     }
 
 
     /** helper method: copy a commit and all of its blobs from src repo to dest repo
      *
      * @param commit: the commit to be copied
-     * @param src: where src repo lives
-     * @param dest: where dest repo lives
+     * @param src: the repository the commit is in
+     * @param dest: the repository it is copied into
      */
-    private void copyCommit(Commit commit, File src, File dest) {
-        changeCwd(src);
-        File commitFileFromSrc = join(COMMITS_DIR, sha1OfObject(commit));
-        changeCwd(dest);
-        File commitFileFromDest = join(COMMITS_DIR, sha1OfObject(commit));
-        writeContentsInFile(commitFileFromDest, commitFileFromSrc);
-
-        // copy blobs
+    private static void copyCommit(Commit commit, Repository src, Repository dest, boolean withBlobs) {
+        String commitId = commit.getId();
+        dest.objects.write(ObjectDatabase.Kind.COMMIT, commitId, src.objects.read(ObjectDatabase.Kind.COMMIT, commitId));
+
+        // copy (or build) the commit graph entry, while the parents are surely reachable in src
+        dest.saveGraphEntry(commitId, src.readOrComputeGraphEntry(commitId));
+
+        if (!withBlobs) {
+            return;
+        }
+
+        // copy blobs, the ones dest already has are not read
         for (String blobID: commit.getMapFromFilenameToId().values()) {
-            changeCwd(src);
-            File blobFileFromSrc = join(BLOBS_DIR, blobID);
-            changeCwd(dest);
-            File blobsFileFromDest = join(BLOBS_DIR, blobID);
-            writeContentsInFile(blobsFileFromDest, blobFileFromSrc);
+            if (!dest.objects.has(ObjectDatabase.Kind.BLOB, blobID)) {
+                dest.objects.write(ObjectDatabase.Kind.BLOB, blobID, src.objects.read(ObjectDatabase.Kind.BLOB, blobID));
+            }
         }
     }
 
@@ -1062,39 +1799,319 @@ public class Repository {
      * into a branch named [remote name]/[remote branch name] in the local .gitlet
      */
     public void fetch(String remoteName, String remoteBranchName) {
-        File originCwd = CWD;
-        File remoteCwd = getRemoteCwd(remoteName);
+        fetch(remoteName, remoteBranchName, 0, false);
+    }
+
+
+    /** fetch --depth command
+     * like fetch, but only brings down the commits at most depth commits away from the remote branch head
+     * (counting the head itself). The deepest ones are recorded in the shallow file, their parents are missing;
+     * fetching again with a larger depth, or without, deepens the history.
+     * fetch --filter=blob:none leaves the blobs out: the remote becomes the promisor,
+     * blobs are fetched from it when their content is needed (see ensureBlobs)
+     * @param depth: how many generations of commits to fetch, 0 for the whole history
+     * @param withoutBlobs: only fetch commits
+     */
+    public void fetch(String remoteName, String remoteBranchName, int depth, boolean withoutBlobs) {
+        try (RepositoryLock lock = lock(true)) {
+            Repository remote = new Repository(getRemoteCwd(remoteName), out);
+            if (!remote.gitletDir.exists()) {
+                out.println("Remote directory not found.");
+                return;
+            }
+
+            // the remote is only read, other readers of it may go on
+            String remoteBranchHeadId;
+            Set<String> boundary = new HashSet<>();
+            try (RepositoryLock remoteLock = remote.lock(false)) {
+                remoteBranchHeadId = remote.refs.resolve(remoteBranchName);
+                if (remoteBranchHeadId == null) {
+                    out.println("That remote does not have that branch.");
+                    return;
+                }
+
+                // get the commits from the given remote branch, as deep as asked
+                Map<String, Commit> remoteCommitsFromBranch = new HashMap<>();
+                try (Profiler.Phase phase = Profiler.phase("walk history")) {
+                    remote.collectHistory(remoteBranchHeadId, depth, remoteCommitsFromBranch, boundary);
+                }
+
+                // copy
+                try (Profiler.Phase phase = Profiler.phase("copy objects")) {
+                    for (Commit remoteCommit: remoteCommitsFromBranch.values()) {
+                        copyCommit(remoteCommit, remote, this, !withoutBlobs);
+                    }
+                }
+            }
+
+            // the remote has to be known as a promisor before a commit missing blobs is referenced
+            List<String> promisors = readPromisors();
+            if (withoutBlobs && !promisors.contains(remoteName)) {
+                promisors.add(remoteName);
+                writeContentsAtomically(promisorFile, tmpDir, String.join("\n", promisors) + "\n");
+            }
+
+            // the boundary is known before the branch points into it
+            updateShallow(boundary);
+
+            // set the remote-tracking branch in local
+            refs.transaction().update(remoteName + "/" + remoteBranchName, remoteBranchHeadId).commit();
+        }
+    }
+
+
+    /// the promisor remotes, in the order they were first fetched from without blobs (none if not a partial repository)
+    private List<String> readPromisors() {
+        List<String> promisors = new ArrayList<>();
+        if (promisorFile.isFile()) {
+            for (String line: readContentsAsString(promisorFile).split("\n")) {
+                if (!line.isEmpty()) {
+                    promisors.add(line);
+                }
+            }
+        }
+        return promisors;
+    }
+
+
+    /// the repository of the promisor remote, null if it is not found
+    private Repository promisorRepository(String promisor) {
+        if (!join(remotesDir, promisor).exists()) {
+            return null;
+        }
+        Repository remote = new Repository(getRemoteCwd(promisor), out);
+        return remote.gitletDir.exists() ? remote : null;
+    }
+
+
+    /** thrown by ensureBlobs under the shared lock, which may not write the blobs it would fetch */
+    private static final class BlobsToFetch extends RuntimeException {
+        private static final long serialVersionUID = -2937165082651310548L;
+
+        private final List<String> blobIds;
+
+        BlobsToFetch(List<String> blobIds) {
+            super(null, null, false, false);
+            this.blobIds = blobIds;
+        }
+    }
 
-        File remoteRepo = new File(readContentsAsString(join(REMOTES_DIR, remoteName)));
-        if (!remoteRepo.exists()) {
-            System.out.println("Remote directory not found.");
+
+    /** run a command holding the shared lock (it only reads), which may read blobs a partial repository lacks:
+     * once it finds out it needs them (BlobsToFetch, before it writes or prints anything), they are fetched
+     * under the exclusive lock, then the command is run again. Blobs are never deleted but by gc,
+     * and not within the grace period, so the second run finds them.
+     */
+    private void withPromisedBlobs(Runnable command) {
+        try {
+            command.run();
             return;
+        } catch (BlobsToFetch needed) {
+            try (RepositoryLock lock = lock(true)) {
+                ensureBlobs(needed.blobIds);
+            }
+        }
+        try {
+            command.run();
+        } catch (BlobsToFetch stillNeeded) {
+            throw new GitletException("No promisor remote has blob " + stillNeeded.blobIds.get(0) + ".");
+        }
+    }
+
+
+    /// which of the given blobs one of the promisor remotes has
+    private Set<String> promisedBlobs(Set<String> blobIds) {
+        return promisedBlobs(blobIds, new HashSet<>());
+    }
+
+    /// the same, not asking again the repositories in ASKED (promisors may promise each other's blobs)
+    private Set<String> promisedBlobs(Set<String> blobIds, Set<File> asked) {
+        Set<String> promised = new HashSet<>();
+        if (!asked.add(commonDir.getAbsoluteFile())) {
+            return promised;
+        }
+        for (String promisor: readPromisors()) {
+            Repository remote = promisorRepository(promisor);
+            if (remote == null) {
+                continue;
+            }
+            try (RepositoryLock promisorLock = remote.lock(false)) {
+                Set<String> lacking = new HashSet<>();
+                for (String blobId: blobIds) {
+                    if (remote.objects.has(ObjectDatabase.Kind.BLOB, blobId)) {
+                        promised.add(blobId);
+                    } else {
+                        lacking.add(blobId);
+                    }
+                }
+                // a partial remote (e.g. the source of a partial clone) can still get them from its own promisors
+                if (!lacking.isEmpty() && remote.promisorFile.exists()) {
+                    promised.addAll(remote.promisedBlobs(lacking, asked));
+                }
+            }
         }
+        return promised;
+    }
+
 
-        changeCwd(remoteCwd);
-        File remoteBranchFile = join(BRANCHES_DIR, remoteBranchName);
-        if (!remoteBranchFile.exists()) {
-            System.out.println("That remote does not have that branch.");
+    /** make sure the given blobs are in this repository before their content is used
+     * in a partial repository (fetch --filter=blob:none), the missing ones are fetched from the promisor remotes,
+     * each asked in turn for the ones still missing, all together under one lock of it, and kept.
+     * That writes, so it needs the exclusive lock: under the shared one, the command is run again
+     * with the blobs fetched first, see withPromisedBlobs
+     * @param blobIds: the blobs about to be read
+     */
+    private void ensureBlobs(Collection<String> blobIds) {
+        if (!promisorFile.exists()) {
+            return; // not a partial repository, every blob is here
+        }
+        List<String> missingBlobs = new ArrayList<>();
+        for (String blobId: blobIds) {
+            if (!objects.has(ObjectDatabase.Kind.BLOB, blobId)) {
+                missingBlobs.add(blobId);
+            }
+        }
+        if (missingBlobs.isEmpty()) {
+            return;
+        }
+        if (!RepositoryLock.isHeldExclusively(commonDir)) {
+            // only the holder of the exclusive lock writes (see RepositoryLock): withPromisedBlobs takes it
+            throw new BlobsToFetch(missingBlobs);
+        }
+        String notFound;
+        try (Profiler.Phase phase = Profiler.phase("fetch blobs")) {
+            notFound = fetchPromisedBlobs(missingBlobs, new HashSet<>());
+        }
+        if (missingBlobs.isEmpty()) {
             return;
         }
+        if (notFound != null) {
+            throw new GitletException("Missing blobs are promised by remote " + notFound + ", which is not found.");
+        }
+        throw new GitletException("No promisor remote has blob " + missingBlobs.get(0) + ".");
+    }
+
+
+    /** copy from the promisor remotes the blobs they have, removing them from missingBlobs
+     * a partial remote (e.g. the source of a partial clone) first fetches the ones it lacks from its own promisors
+     * @param asked: the repositories asked already, promisors may promise each other's blobs
+     * @return a promisor remote which was not found, null if they all were
+     */
+    private String fetchPromisedBlobs(List<String> missingBlobs, Set<File> asked) {
+        String notFound = null;
+        if (!asked.add(commonDir.getAbsoluteFile())) {
+            return notFound;
+        }
+        boolean fetched = false;
+        for (String promisor: readPromisors()) {
+            Repository remote = promisorRepository(promisor);
+            if (remote == null) {
+                notFound = promisor;
+                continue;
+            }
+            if (remote.promisorFile.exists()) {
+                List<String> lacking = new ArrayList<>();
+                for (String blobId: missingBlobs) {
+                    if (!remote.objects.has(ObjectDatabase.Kind.BLOB, blobId)) {
+                        lacking.add(blobId);
+                    }
+                }
+                if (!lacking.isEmpty()) {
+                    // it writes them, so under its exclusive lock
+                    try (RepositoryLock promisorLock = remote.lock(true)) {
+                        remote.fetchPromisedBlobs(lacking, asked);
+                    }
+                }
+            }
+            try (RepositoryLock promisorLock = remote.lock(false)) {
+                Iterator<String> missing = missingBlobs.iterator();
+                while (missing.hasNext()) {
+                    String blobId = missing.next();
+                    if (remote.objects.has(ObjectDatabase.Kind.BLOB, blobId)) {
+                        objects.write(ObjectDatabase.Kind.BLOB, blobId,
+                                remote.objects.read(ObjectDatabase.Kind.BLOB, blobId));
+                        missing.remove();
+                        fetched = true;
+                    }
+                }
+            }
+            if (missingBlobs.isEmpty()) {
+                break;
+            }
+        }
+        // the commands reading them may write nothing else (archive, bundle create, push):
+        // installed now, in a log repository they would stay in a pending segment and be fetched again next time
+        if (fetched) {
+            flushObjects();
+            Durability.sync();
+        }
+        return notFound;
+    }
 
-        // get all the commits from the given remote branch
-        Commit remoteBranchHeadCommit = getCommitOfBranch(remoteBranchName);
-        HashSet<Commit> remoteCommitsFromBranch = new HashSet<>();
-        bfsSearchHistoryFrom(remoteBranchHeadCommit, remoteCommitsFromBranch, null);
 
-        // copy
-        for (Commit remoteCommit: remoteCommitsFromBranch) {
-            copyCommit(remoteCommit, remoteCwd, originCwd);
+    /// whether the parents of the commit are all in this repository
+    private boolean hasParents(Commit commit) {
+        for (String parentId: new String[] {commit.getParent1ID(), commit.getParent2ID()}) {
+            if (!parentId.isEmpty() && !objects.has(ObjectDatabase.Kind.COMMIT, parentId)) {
+                return false;
+            }
         }
-        // set back
-        changeCwd(originCwd);
+        return true;
+    }
+
 
-        // set the remote branch file in local
-        File remoteNameUnderBranches = join(BRANCHES_DIR, remoteName);
-        remoteNameUnderBranches.mkdir();
-        File remoteBranchLocal = join(remoteNameUnderBranches, remoteBranchName);
-        writeContents(remoteBranchLocal, sha1OfObject(remoteBranchHeadCommit));
+    /** helper method: walk the history from the commit startId breadth first, at most depth commits deep
+     * (0: no limit), putting every commit reached into commits by id.
+     * The commits whose parents are left out, for being too deep or beyond a shallow boundary
+     * of this repository, are put into boundary.
+     */
+    private void collectHistory(String startId, int depth, Map<String, Commit> commits, Set<String> boundary) {
+        Set<String> shallowCommits = readShallow();
+        Map<String, Integer> depthOf = new HashMap<>();
+        Queue<String> queue = new LinkedList<>();
+        commits.put(startId, readCommit(startId));
+        depthOf.put(startId, 1);
+        queue.offer(startId);
+        try (ReadAhead readAhead = readAhead(shallowCommits)) {
+            while (!queue.isEmpty()) {
+                String currentId = queue.poll();
+                Commit current = commits.get(currentId);
+                int currentDepth = depthOf.get(currentId);
+                if (current.getParent1ID().isEmpty()) {
+                    continue; // initial commit
+                }
+                // breadth first, so a commit is first reached at its smallest depth
+                if (shallowCommits.contains(currentId) || (depth > 0 && currentDepth >= depth)) {
+                    boundary.add(currentId);
+                    continue;
+                }
+                // with a depth, what lies beyond it isn't read ahead
+                if (depth == 0 || currentDepth + 1 < depth) {
+                    readAhead.visit(current);
+                }
+                for (String parentId: new String[] {current.getParent1ID(), current.getParent2ID()}) {
+                    if (!parentId.isEmpty() && !commits.containsKey(parentId)) {
+                        commits.put(parentId, readCommit(parentId));
+                        depthOf.put(parentId, currentDepth + 1);
+                        queue.offer(parentId);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /** add the newly fetched boundary commits to the shallow file,
+     * and drop the commits which have all their parents now (the history was deepened)
+     */
+    private void updateShallow(Set<String> boundary) {
+        Set<String> shallowCommits = readShallow();
+        if (shallowCommits.isEmpty() && boundary.isEmpty()) {
+            return;
+        }
+        shallowCommits.addAll(boundary);
+        shallowCommits.removeIf(commitId -> hasParents(readCommit(commitId)));
+        writeShallow(shallowCommits);
     }
 
 
@@ -1102,8 +2119,384 @@ public class Repository {
      * fetch and merge
      */
     public void pull(String remoteName, String remoteBranchName) {
-        fetch(remoteName, remoteBranchName);
-        String remoteBranchNameLocal = remoteName + "/" + remoteBranchName;
-        merge(remoteBranchNameLocal);
+        try (RepositoryLock lock = lock(true)) {
+            fetch(remoteName, remoteBranchName);
+            String remoteBranchNameLocal = remoteName + "/" + remoteBranchName;
+            merge(remoteBranchNameLocal);
+        }
+    }
+
+
+    /** clone command
+     * Makes a new repository in dirName (by default a directory named like the source, in the current one)
+     * with the objects and branches of the local repository at sourcePath, then checks out its HEAD.
+     * Objects never change once written, so they are hard-linked rather than copied when the file system allows:
+     * a clone costs next to no time and disk whatever the size of the history.
+     * The source becomes the remote origin, its branches the remote-tracking branches origin/[branch].
+     * @param depth: like fetch --depth, only clone the HEAD branch this many commits deep; 0 for everything
+     */
+    public void cloneRepository(String sourcePath, String dirName, int depth) {
+        File sourceCwd = resolve(sourcePath);
+        if (sourceCwd.getName().equals(".gitlet")) {
+            sourceCwd = sourceCwd.getParentFile();
+        }
+        Repository source = new Repository(sourceCwd, out);
+        if (!source.commonDir.isDirectory()) {
+            out.println("Source repository not found.");
+            return;
+        }
+        File destCwd = dirName == null ? join(cwd, sourceCwd.getName()) : resolve(dirName);
+        String[] destContent = destCwd.list();
+        if (destCwd.exists() && (destContent == null || destContent.length > 0)) {
+            out.println("Destination already exists and is not an empty directory.");
+            return;
+        }
+
+        Repository dest;
+        try (RepositoryLock sourceLock = source.lock(false)) {
+            // HEAD may be a remote-tracking branch ([remote]/[branch]): the clone's branch is then named [branch]
+            String sourceHead = source.refs.getHead();
+            String headBranch = sourceHead.substring(sourceHead.lastIndexOf('/') + 1);
+            String headCommitId = source.refs.resolve(sourceHead);
+            TreeMap<String, String> branches = source.refs.all();
+            branches.keySet().removeIf(branchName -> branchName.contains("/"));
+            Set<String> shallowCommits = source.readShallow();
+
+            // the objects to clone, null for all of them
+            Collection<String> commitIds = null;
+            Collection<String> blobIds = null;
+            Map<String, CommitGraphEntry> computedEntries = new HashMap<>();
+            if (depth > 0) {
+                Map<String, Commit> commits = new HashMap<>();
+                Set<String> boundary = new HashSet<>();
+                try (Profiler.Phase phase = Profiler.phase("walk history")) {
+                    source.collectHistory(headCommitId, depth, commits, boundary);
+                }
+                // the commits cut off here, and those of the source's own boundary which were reached
+                shallowCommits = boundary;
+                branches.keySet().retainAll(Collections.singleton(sourceHead));
+                commitIds = commits.keySet();
+                blobIds = new HashSet<>();
+                for (Map.Entry<String, Commit> commit: commits.entrySet()) {
+                    blobIds.addAll(commit.getValue().getMapFromFilenameToId().values());
+                    // the clone couldn't compute the entry of a boundary commit, missing its parent
+                    if (!source.objects.has(ObjectDatabase.Kind.GRAPH, commit.getKey())) {
+                        computedEntries.put(commit.getKey(), source.readOrComputeGraphEntry(commit.getKey()));
+                    }
+                }
+            }
+
+            destCwd.mkdirs();
+            // the clone keeps its objects the way the source does
+            if (source.objects instanceof LogObjectDatabase) {
+                LogObjectDatabase.create(join(destCwd, ".gitlet", "objects"));
+            }
+            dest = new Repository(destCwd, out);
+            dest.createInitialDirectory();
+            try (RepositoryLock destLock = dest.lock(true)) {
+                try (Profiler.Phase phase = Profiler.phase("link objects")) {
+                    copyObjects(source, dest, ObjectDatabase.Kind.COMMIT, commitIds);
+                    copyObjects(source, dest, ObjectDatabase.Kind.GRAPH, commitIds);
+                    copyObjects(source, dest, ObjectDatabase.Kind.BLOB, blobIds);
+                }
+                for (Map.Entry<String, CommitGraphEntry> entry: computedEntries.entrySet()) {
+                    dest.saveGraphEntry(entry.getKey(), entry.getValue());
+                }
+                dest.writeShallow(shallowCommits);
+                dest.addRemote("origin", source.commonDir.getPath());
+                // the blobs a partial source lacks are promised to the clone by the source,
+                // which gets them from its own promisors
+                if (source.promisorFile.exists()) {
+                    writeContentsAtomically(dest.promisorFile, dest.tmpDir, "origin\n");
+                }
+
+                RefStore.Transaction transaction = dest.refs.transaction();
+                for (Map.Entry<String, String> branch: branches.entrySet()) {
+                    transaction.update("origin/" + branch.getKey(), branch.getValue());
+                }
+                transaction.update(headBranch, headCommitId).setHead(headBranch).commit();
+            }
+        }
+
+        // out of the source's lock: a partial source takes its exclusive lock to fetch the blobs promised to the clone
+        try (RepositoryLock destLock = dest.lock(true);
+             Profiler.Phase phase = Profiler.phase("write working tree")) {
+            Commit head = dest.getLatestCommit();
+            dest.ensureBlobs(dest.sparseFiles(head).values());
+            dest.checkoutInParallel(head);
+        }
+    }
+
+
+    /** put the objects of that kind named in ids (every one if ids is null) of src into dest
+     * loose objects are hard-linked, see linkObjects; objects of any other database are copied
+     */
+    private static void copyObjects(Repository src, Repository dest, ObjectDatabase.Kind kind, Collection<String> ids) {
+        if (src.objects instanceof LooseObjectDatabase && dest.objects instanceof LooseObjectDatabase) {
+            linkObjects(((LooseObjectDatabase) src.objects).dirOf(kind), ((LooseObjectDatabase) dest.objects).dirOf(kind),
+                    ids);
+            return;
+        }
+        for (String id: ids == null ? src.objects.ids(kind) : ids) {
+            // e.g. the graph entry of a commit older than the commit graph
+            if (src.objects.has(kind, id)) {
+                dest.objects.write(kind, id, src.objects.read(kind, id));
+            }
+        }
+    }
+
+
+    /** hard-link the objects named in ids (every one if ids is null) from srcDir into destDir,
+     * copying those the file system can't link (e.g. another device)
+     */
+    private static void linkObjects(File srcDir, File destDir, Collection<String> ids) {
+        Collection<String> names = ids == null ? plainFilenamesIn(srcDir) : ids;
+        if (names == null) {
+            return;
+        }
+        names.parallelStream().forEach(name -> {
+            Path source = join(srcDir, name).toPath();
+            Path link = join(destDir, name).toPath();
+            if (!Files.exists(source)) {
+                return; // e.g. the graph entry of a commit older than the commit graph
+            }
+            try {
+                try {
+                    Files.createLink(link, source);
+                } catch (IOException | UnsupportedOperationException excp) {
+                    Files.copy(source, link, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException excp) {
+                throw new GitletException("Cannot clone object " + name + ": " + excp.getMessage());
+            }
+        });
+    }
+
+
+    /// write every file of the commit into the working directory, several at a time
+    private void checkoutInParallel(Commit commit) {
+        String command = GitletEvents.getCommand();
+        sparseFiles(commit).entrySet().parallelStream().forEach(file -> {
+            try (GitletEvents.CommandScope events = GitletEvents.command(command)) {
+                checkoutBlob(join(cwd, file.getKey()), file.getValue());
+            }
+        });
+    }
+
+    /// the files of the commit this worktree checks out, name -> blob id (all of them unless it is sparse)
+    private Map<String, String> sparseFiles(Commit commit) {
+        SparseCheckout sparse = SparseCheckout.read(sparseFile);
+        if (sparse.isFull()) {
+            return commit.getMapFromFilenameToId();
+        }
+        Map<String, String> files = new TreeMap<>();
+        for (Map.Entry<String, String> file: commit.getMapFromFilenameToId().entrySet()) {
+            if (sparse.includes(file.getKey())) {
+                files.put(file.getKey(), file.getValue());
+            }
+        }
+        return files;
+    }
+
+
+    /// write the content of the blob into the working file
+    private void checkoutBlob(File file, String blobId) {
+        writeContents(file, (Object) objects.read(ObjectDatabase.Kind.BLOB, blobId));
+    }
+
+
+    /** worktree add command
+     * Makes dirName a new working directory of this repository, with the given branch checked out.
+     * It shares the objects, branches and remotes of this repository (no copy at all);
+     * its HEAD and staging area are its own, kept in .gitlet/worktrees/[name]/,
+     * and its .gitlet is a file naming that directory.
+     * A branch can only be checked out in one worktree at a time.
+     */
+    public void worktreeAdd(String dirName, String branchName) {
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+
+            String commitId = refs.resolve(branchName);
+            if (commitId == null) {
+                out.println("No such branch exists.");
+                return;
+            }
+            if (branchName.equals(getCurrentBranchName()) || worktreeWithBranch(branchName) != null) {
+                out.println("That branch is checked out in another worktree.");
+                return;
+            }
+            File destCwd = resolve(dirName);
+            String[] destContent = destCwd.list();
+            if (destCwd.exists() && (destContent == null || destContent.length > 0)) {
+                out.println("Destination already exists and is not an empty directory.");
+                return;
+            }
+
+            // the own files of the worktree, under a name not taken yet
+            File worktreeGitletDir = join(worktreesDir, destCwd.getName());
+            for (int i = 1; worktreeGitletDir.exists(); i++) {
+                worktreeGitletDir = join(worktreesDir, destCwd.getName() + i);
+            }
+            join(worktreeGitletDir, "stages", "added").mkdirs();
+            join(worktreeGitletDir, "stages", "removeStage").mkdirs();
+            writeContents(join(worktreeGitletDir, "commondir"), commonDir.getAbsolutePath());
+            writeContents(join(worktreeGitletDir, "gitdir"), join(destCwd, ".gitlet").getAbsolutePath());
+            writeContents(join(worktreeGitletDir, "branch"), branchName);
+
+            destCwd.mkdirs();
+            writeContents(join(destCwd, ".gitlet"), "gitdir: " + worktreeGitletDir.getAbsolutePath());
+
+            Repository worktree = new Repository(destCwd, out);
+            try (Profiler.Phase phase = Profiler.phase("write working tree")) {
+                worktree.checkoutInParallel(worktree.getLatestCommit());
+            }
+        }
+    }
+
+
+    /** worktree list command
+     * Displays every worktree of the repository, the main one first, with its current branch
+     */
+    public void worktreeList() {
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+
+            for (File worktreeDir: allGitletDirs()) {
+                String path = worktreeDir.equals(commonDir)
+                        ? commonDir.getAbsoluteFile().getParent()
+                        : new File(readContentsAsString(join(worktreeDir, "gitdir"))).getParent();
+                String missing = isStaleWorktree(worktreeDir) ? " (missing)" : "";
+                out.println(path + " [" + readContentsAsString(join(worktreeDir, "branch")) + "]" + missing);
+            }
+        }
+    }
+
+
+    /// the .gitlet directories of every worktree: the common one, then those under worktrees/
+    private List<File> allGitletDirs() {
+        List<File> gitletDirs = new ArrayList<>();
+        gitletDirs.add(commonDir);
+        File[] worktreeDirs = worktreesDir.listFiles(File::isDirectory);
+        if (worktreeDirs != null) {
+            Arrays.sort(worktreeDirs);
+            gitletDirs.addAll(Arrays.asList(worktreeDirs));
+        }
+        return gitletDirs;
+    }
+
+
+    /// whether the working directory of a linked worktree has been deleted
+    private boolean isStaleWorktree(File worktreeDir) {
+        return !worktreeDir.equals(commonDir) && !new File(readContentsAsString(join(worktreeDir, "gitdir"))).exists();
+    }
+
+
+    /// the .gitlet directory of another worktree having the branch checked out, null if there is none
+    private File worktreeWithBranch(String branchName) {
+        for (File worktreeDir: allGitletDirs()) {
+            if (!worktreeDir.equals(gitletDir) && !isStaleWorktree(worktreeDir)
+                    && branchName.equals(readContentsAsString(join(worktreeDir, "branch")))) {
+                return worktreeDir;
+            }
+        }
+        return null;
+    }
+
+
+    /** sparse-checkout set command
+     *  From now on this worktree only checks out the paths matching PATTERNS (see SparseCheckout):
+     *  the tracked files no longer matching are deleted, those matching now are written.
+     *  Commits still have every file. No patterns at all means every path (sparse-checkout disable).
+     *  Refused while there are staged changes, or changes to a file that would be deleted.
+     */
+    public void sparseCheckoutSet(List<String> patterns) {
+        try (RepositoryLock lock = lock(true)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+
+            SparseCheckout oldSparse = SparseCheckout.read(sparseFile);
+            SparseCheckout newSparse = SparseCheckout.of(patterns);
+            if (!stagedForAddition().isEmpty() || !plainFilenamesIn(removeStageDir).isEmpty()) {
+                out.println("You have uncommitted changes.");
+                return;
+            }
+
+            Map<String, String> trackedFiles = getLatestCommit().getMapFromFilenameToId();
+            List<String> toDelete = new ArrayList<>();
+            Map<String, String> toWrite = new TreeMap<>();
+            for (Map.Entry<String, String> file: trackedFiles.entrySet()) {
+                boolean wasIn = oldSparse.includes(file.getKey());
+                boolean isIn = newSparse.includes(file.getKey());
+                File cwdFile = join(cwd, file.getKey());
+                if (wasIn && !isIn && cwdFile.exists()) {
+                    // only a file as committed can go, it comes back from the commit
+                    if (!sha1IdOfFile(cwdFile).equalsHex(file.getValue())) {
+                        out.println("You have uncommitted changes.");
+                        return;
+                    }
+                    toDelete.add(file.getKey());
+                } else if (isIn && !cwdFile.exists()) {
+                    toWrite.put(file.getKey(), file.getValue());
+                }
+            }
+
+            ensureBlobs(toWrite.values());
+            try (Profiler.Phase phase = Profiler.phase("write working tree")) {
+                for (String fileName: toDelete) {
+                    restrictedDelete(join(cwd, fileName));
+                }
+                for (Map.Entry<String, String> file: toWrite.entrySet()) {
+                    checkoutBlob(join(cwd, file.getKey()), file.getValue());
+                }
+            }
+            newSparse.write(sparseFile);
+        }
+    }
+
+    /** sparse-checkout list command
+     *  Prints the patterns of the paths this worktree checks out, one per line (nothing if it checks out all).
+     */
+    public void sparseCheckoutList() {
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+            for (String pattern: SparseCheckout.read(sparseFile).getPatterns()) {
+                out.println(pattern);
+            }
+        }
+    }
+
+    /** fsmonitor start command
+     *  Watches the working directory until `fsmonitor stop`, so that status and the checks of checkout,
+     *  reset and merge only look at the files changed since they last asked (see FsMonitor).
+     *  It runs in the foreground, without holding the repository lock: start it in the background.
+     */
+    public void fsmonitorStart() {
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+        }
+        fsmonitor.run(out);
+    }
+
+    /** fsmonitor stop command
+     *  Stops the fsmonitor of the working directory, if there is one.
+     */
+    public void fsmonitorStop() {
+        try (RepositoryLock lock = lock(false)) {
+            if (!checkIsInitialized()) {
+                return;
+            }
+            if (!fsmonitor.stop()) {
+                out.println("No fsmonitor is running.");
+            }
+        }
     }
 }
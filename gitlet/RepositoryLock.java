@@ -0,0 +1,169 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** A reader/writer lock on a repository, shared by every process using it.
+ *  Readers (status, log, find...) hold a shared lock and run concurrently,
+ *  a writer holds an exclusive one, so the several files a command updates
+ *  (head, branch, branches/*, the stages) are never seen half written.
+ *
+ *  Across processes the lock is a FileChannel lock on .gitlet/lock.
+ *  A file lock belongs to the whole JVM, so inside one process a ReentrantReadWriteLock
+ *  per repository decides first, and the file lock is taken by the first holder and released by the last.
+ *  Waiting is bounded: after the timeout a GitletException is thrown.
+ *
+ *  @author x-yy-x
+ */
+class RepositoryLock implements AutoCloseable {
+
+    /** how long to wait for the lock by default, can be changed with GITLET_LOCK_TIMEOUT_MS */
+    private static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+    /** longest pause between two attempts to get the file lock */
+    private static final long MAX_RETRY_DELAY_MILLIS = 50;
+
+    /** the lock state of every repository this process has locked, by lock file */
+    private static final Map<Path, Holder> HOLDERS = new ConcurrentHashMap<>();
+
+    /** what this process holds on one repository */
+    private static class Holder {
+        private final ReentrantReadWriteLock inProcess = new ReentrantReadWriteLock();
+        private FileChannel channel;
+        private FileLock fileLock;
+        private int count;
+    }
+
+    private final Path lockPath;
+    private final Holder holder;
+    private final Lock inProcessLock;
+    private boolean released;
+
+    private RepositoryLock(Path lockPath, Holder holder, Lock inProcessLock) {
+        this.lockPath = lockPath;
+        this.holder = holder;
+        this.inProcessLock = inProcessLock;
+    }
+
+    /** lock the repository whose .gitlet directory is GITLETDIR, shared unless EXCLUSIVE */
+    static RepositoryLock acquire(File gitletDir, boolean exclusive) {
+        return acquire(gitletDir, exclusive, timeoutMillis());
+    }
+
+    static RepositoryLock acquire(File gitletDir, boolean exclusive, long timeoutMillis) {
+        Path lockPath = new File(gitletDir, "lock").toPath().toAbsolutePath().normalize();
+        Holder holder = HOLDERS.computeIfAbsent(lockPath, p -> new Holder());
+        Lock inProcessLock = exclusive ? holder.inProcess.writeLock() : holder.inProcess.readLock();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            if (!inProcessLock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw busy();
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw busy();
+        }
+
+        RepositoryLock lock = new RepositoryLock(lockPath, holder, inProcessLock);
+        try {
+            synchronized (holder) {
+                if (holder.count == 0) {
+                    // the in-process lock guarantees nobody else here holds the file lock in another mode
+                    lockFile(holder, lockPath, exclusive, deadline);
+                }
+                holder.count++;
+            }
+        } catch (RuntimeException excp) {
+            inProcessLock.unlock();
+            throw excp;
+        }
+        return lock;
+    }
+
+    /** whether this thread holds the exclusive lock of the repository whose .gitlet directory is GITLETDIR */
+    static boolean isHeldExclusively(File gitletDir) {
+        Holder holder = HOLDERS.get(new File(gitletDir, "lock").toPath().toAbsolutePath().normalize());
+        return holder != null && holder.inProcess.isWriteLockedByCurrentThread();
+    }
+
+    /// take the file lock, retrying with a growing delay until DEADLINE
+    private static void lockFile(Holder holder, Path lockPath, boolean exclusive, long deadline) {
+        try {
+            FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long delay = 1;
+            while (true) {
+                FileLock fileLock = channel.tryLock(0, Long.MAX_VALUE, !exclusive);
+                if (fileLock != null) {
+                    holder.channel = channel;
+                    holder.fileLock = fileLock;
+                    return;
+                }
+                if (System.nanoTime() > deadline) {
+                    channel.close();
+                    throw busy();
+                }
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot lock the repository: " + excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw busy();
+        }
+    }
+
+    private static GitletException busy() {
+        return new GitletException("The repository is locked by another gitlet command; try again later.");
+    }
+
+    private static long timeoutMillis() {
+        String configured = System.getenv("GITLET_LOCK_TIMEOUT_MS");
+        if (configured == null) {
+            return DEFAULT_TIMEOUT_MILLIS;
+        }
+        try {
+            return Long.parseLong(configured);
+        } catch (NumberFormatException excp) {
+            return DEFAULT_TIMEOUT_MILLIS;
+        }
+    }
+
+    /** release the lock, the file lock goes with the last holder of this process */
+    @Override
+    public void close() {
+        if (released) {
+            return;
+        }
+        released = true;
+        synchronized (holder) {
+            holder.count--;
+            if (holder.count == 0) {
+                try {
+                    holder.fileLock.release();
+                    holder.channel.close();
+                } catch (IOException excp) {
+                    throw new GitletException("Cannot unlock the repository: " + excp.getMessage());
+                } finally {
+                    holder.fileLock = null;
+                    holder.channel = null;
+                }
+            }
+        }
+        inProcessLock.unlock();
+    }
+
+    @Override
+    public String toString() {
+        return "RepositoryLock(" + lockPath + ")";
+    }
+}
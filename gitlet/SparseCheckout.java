@@ -0,0 +1,106 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import static gitlet.Utils.*;
+
+/** The paths a worktree checks out, from the patterns of its .gitlet/sparse-checkout file (one per line).
+ *  A pattern is a glob (`*.java`, `src*`) matched against the file name: gitlet only tracks the plain files
+ *  of one directory, so there is no directory to match and a pattern with a `/` is refused.
+ *  Without the file, or with no pattern in it, every path is checked out.
+ *  Commits always carry every file: only the working directory is sparse.
+ *
+ *  @author x-yy-x
+ */
+class SparseCheckout {
+    /** checks out everything */
+    static final SparseCheckout FULL = new SparseCheckout(Collections.emptyList());
+
+    private final List<String> patterns;
+    private final List<PathMatcher> matchers = new ArrayList<>();
+
+    private SparseCheckout(List<String> patterns) {
+        this.patterns = patterns;
+        for (String pattern: patterns) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+    }
+
+    /** the patterns in PATTERNS, throws GitletException if one isn't a valid glob of file names */
+    static SparseCheckout of(List<String> patterns) {
+        for (String pattern: patterns) {
+            if (pattern.contains("/")) {
+                throw new GitletException("Invalid pattern: " + pattern + " (patterns match file names, not directories)");
+            }
+        }
+        return parse(patterns);
+    }
+
+    private static SparseCheckout parse(List<String> patterns) {
+        try {
+            return new SparseCheckout(new ArrayList<>(patterns));
+        } catch (PatternSyntaxException excp) {
+            throw new GitletException("Invalid pattern: " + excp.getPattern());
+        }
+    }
+
+    /** the patterns in FILE, everything if there is no such file */
+    static SparseCheckout read(File file) {
+        if (!file.isFile()) {
+            return FULL;
+        }
+        List<String> patterns = new ArrayList<>();
+        for (String line: readContentsAsString(file).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                patterns.add(line.trim());
+            }
+        }
+        // as written by an older gitlet, which took directories too: such a pattern just matches nothing
+        return parse(patterns);
+    }
+
+    /** store the patterns in FILE, or remove it if everything is checked out */
+    void write(File file) {
+        if (patterns.isEmpty()) {
+            file.delete();
+            return;
+        }
+        writeContents(file, String.join("\n", patterns) + "\n");
+    }
+
+    boolean isFull() {
+        return patterns.isEmpty();
+    }
+
+    List<String> getPatterns() {
+        return Collections.unmodifiableList(patterns);
+    }
+
+    /** whether PATH is checked out */
+    boolean includes(String path) {
+        if (patterns.isEmpty()) {
+            return true;
+        }
+        Path asPath;
+        try {
+            asPath = Paths.get(path);
+        } catch (InvalidPathException excp) {
+            return false;
+        }
+        for (PathMatcher matcher: matchers) {
+            if (matcher.matches(asPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
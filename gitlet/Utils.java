@@ -1,11 +1,13 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -15,10 +17,8 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
-import static gitlet.Repository.GITLET_DIR;
 
 
 /** Assorted utilities.
@@ -35,27 +35,59 @@ class Utils {
 
     /* SHA-1 HASH VALUES. */
 
+    /** One SHA-1 digest per thread, reset and reused by every hash instead of
+     *  looking a new one up through the security providers each time. */
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    });
+
+    /** Per-thread buffer used to stream files through the digest. */
+    private static final ThreadLocal<byte[]> HASH_BUFFER = ThreadLocal.withInitial(() -> new byte[1 << 16]);
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
-            }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        return ObjectId.toHex(sha1Raw(vals), 0);
+    }
+
+    /** Returns the SHA-1 hash of the concatenation of VALS as an ObjectId. */
+    static ObjectId sha1Id(Object... vals) {
+        return ObjectId.fromRaw(sha1Raw(vals));
+    }
+
+    private static byte[] sha1Raw(Object... vals) {
+        GitletEvents.Hash event = GitletEvents.beginHash();
+        MessageDigest md = SHA1_DIGEST.get();
+        md.reset();
+        long hashed = 0;
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+                hashed += ((byte[]) val).length;
+            } else if (val instanceof String) {
+                byte[] bytes = ((String) val).getBytes(StandardCharsets.UTF_8);
+                md.update(bytes);
+                hashed += bytes.length;
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        Profiler.count(Profiler.Counter.BYTES_HASHED, hashed);
+        byte[] digest = md.digest();
+        commitHashEvent(event, digest, hashed);
+        return digest;
+    }
+
+    private static void commitHashEvent(GitletEvents.Hash event, byte[] digest, long size) {
+        if (event != null && event.shouldCommit()) {
+            event.objectId = ObjectId.toHex(digest, 0);
+            event.size = size;
+            event.command = GitletEvents.getCommand();
+            event.commit();
         }
     }
 
@@ -73,19 +105,51 @@ class Utils {
 
     // Returns the SHA-1 hash of the content in a file
     static String sha1OfFile(File userFile) {
-        byte[] userFileContents = readContents(userFile);
-        return sha1((Object) userFileContents);
+        return sha1IdOfFile(userFile).toHex();
+    }
+
+    /** Returns the SHA-1 hash of the content of FILE as an ObjectId.
+     *  The file is streamed through a reused buffer, never held in memory as a whole.
+     *  Throws IllegalArgumentException in case of problems. */
+    static ObjectId sha1IdOfFile(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        try {
+            return sha1IdOf(Files.newInputStream(file.toPath()));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the SHA-1 hash of everything IN yields, closing it, as an ObjectId.
+     *  Throws IllegalArgumentException in case of problems. */
+    static ObjectId sha1IdOf(InputStream input) {
+        GitletEvents.Hash event = GitletEvents.beginHash();
+        MessageDigest md = SHA1_DIGEST.get();
+        md.reset();
+        byte[] buffer = HASH_BUFFER.get();
+        long hashed = 0;
+        try (InputStream in = input) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                md.update(buffer, 0, count);
+                hashed += count;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Profiler.count(Profiler.Counter.BYTES_HASHED, hashed);
+        byte[] digest = md.digest();
+        commitHashEvent(event, digest, hashed);
+        return ObjectId.fromRaw(digest);
     }
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
-     *  if FILE was deleted, and false otherwise.  Refuses to delete FILE
-     *  and throws IllegalArgumentException unless the directory designated by
-     *  FILE also contains a directory named .gitlet. */
+     *  if FILE was deleted, and false otherwise.  Never deletes a directory;
+     *  a Repository also refuses to delete anything once its .gitlet is gone. */
     static boolean restrictedDelete(File file) {
-        if (!GITLET_DIR.isDirectory()) {
-            throw new IllegalArgumentException("not .gitlet working directory");
-        }
         if (!file.isDirectory()) {
             return file.delete();
         } else {
@@ -118,8 +182,19 @@ class Utils {
         if (!file.isFile()) {
             throw new IllegalArgumentException("must be a normal file");
         }
+        GitletEvents.ObjectRead event = GitletEvents.beginObjectRead();
         try {
-            return Files.readAllBytes(file.toPath());
+            byte[] contents = Files.readAllBytes(file.toPath());
+            Profiler.count(Profiler.Counter.FILES_READ);
+            Profiler.count(Profiler.Counter.BYTES_READ, contents.length);
+            if (event != null && event.shouldCommit()) {
+                event.objectId = file.getName();
+                event.kind = "readContents";
+                event.size = contents.length;
+                event.command = GitletEvents.getCommand();
+                event.commit();
+            }
+            return contents;
         } catch (IOException excp) {
             throw new IllegalArgumentException(excp.getMessage());
         }
@@ -140,6 +215,34 @@ class Utils {
      *  either a String or a byte array.  Throws IllegalArgumentException
      *  in case of problems. */
     static void writeContents(File file, Object... contents) {
+        write(file, file.getName(), contents);
+    }
+
+    /** Like writeContents, but CONTENTS are written to a temporary file in TEMPDIR
+     *  (on the same file system as FILE), which is then renamed to FILE:
+     *  FILE is never seen half written. How the write is synced to disk depends on Durability. */
+    static void writeContentsAtomically(File file, File tempDir, Object... contents) {
+        tempDir.mkdirs();
+        File temp;
+        try {
+            temp = File.createTempFile(file.getName() + "-", ".tmp", tempDir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            write(temp, file.getName(), contents);
+            Durability.install(temp, file);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            // already gone once renamed
+            temp.delete();
+        }
+    }
+
+    /** write CONTENTS to FILE, reporting it as a write of NAME */
+    private static void write(File file, String name, Object... contents) {
+        GitletEvents.ObjectWrite event = GitletEvents.beginObjectWrite();
         try {
             if (file.isDirectory()) {
                 throw
@@ -147,14 +250,22 @@ class Utils {
             }
             BufferedOutputStream str =
                 new BufferedOutputStream(Files.newOutputStream(file.toPath()));
+            long written = 0;
             for (Object obj : contents) {
-                if (obj instanceof byte[]) {
-                    str.write((byte[]) obj);
-                } else {
-                    str.write(((String) obj).getBytes(StandardCharsets.UTF_8));
-                }
+                byte[] bytes = obj instanceof byte[]
+                        ? (byte[]) obj : ((String) obj).getBytes(StandardCharsets.UTF_8);
+                str.write(bytes);
+                written += bytes.length;
             }
             str.close();
+            Profiler.count(Profiler.Counter.FILES_WRITTEN);
+            Profiler.count(Profiler.Counter.BYTES_WRITTEN, written);
+            if (event != null && event.shouldCommit()) {
+                event.objectId = name;
+                event.size = written;
+                event.command = GitletEvents.getCommand();
+                event.commit();
+            }
         } catch (IOException | ClassCastException excp) {
             throw new IllegalArgumentException(excp.getMessage());
         }
@@ -170,11 +281,41 @@ class Utils {
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
                                                  Class<T> expectedClass) {
+        GitletEvents.ObjectRead event = GitletEvents.beginObjectRead();
         try {
             ObjectInputStream in =
                 new ObjectInputStream(new FileInputStream(file));
             T result = expectedClass.cast(in.readObject());
             in.close();
+            Profiler.count(Profiler.Counter.FILES_READ);
+            Profiler.count(Profiler.Counter.BYTES_READ, file.length());
+            Profiler.count(Profiler.Counter.OBJECTS_DESERIALIZED);
+            if (result instanceof Commit) {
+                Profiler.count(Profiler.Counter.COMMITS_DESERIALIZED);
+            }
+            if (event != null && event.shouldCommit()) {
+                event.objectId = file.getName();
+                event.kind = "readObject";
+                event.size = file.length();
+                event.command = GitletEvents.getCommand();
+                event.commit();
+            }
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return an object of type T deserialized from DATA, casting it to EXPECTEDCLASS.
+     *  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] data, Class<T> expectedClass) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            T result = expectedClass.cast(in.readObject());
+            Profiler.count(Profiler.Counter.OBJECTS_DESERIALIZED);
+            if (result instanceof Commit) {
+                Profiler.count(Profiler.Counter.COMMITS_DESERIALIZED);
+            }
             return result;
         } catch (IOException | ClassCastException
                  | ClassNotFoundException excp) {
@@ -202,6 +343,7 @@ class Utils {
      *  lexicographic order as Java Strings.  Returns null if DIR does
      *  not denote a directory. */
     static List<String> plainFilenamesIn(File dir) {
+        Profiler.count(Profiler.Counter.DIRECTORY_LISTINGS);
         String[] files = dir.list(PLAIN_FILES);
         if (files == null) {
             return null;